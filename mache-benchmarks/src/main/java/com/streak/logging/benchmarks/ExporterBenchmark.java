@@ -0,0 +1,107 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.example.BasicFieldExporterSet;
+import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.JsonRowSink;
+import com.streak.logging.utils.RowPlan;
+
+/**
+ * Transforms synthetic logs with the exporters of BasicFieldExporterSet, once
+ * through the indexed exporters into a JSON row and once through the
+ * name-based processLog/getField calls into a row map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExporterBenchmark {
+	private static final int LOG_COUNT = 1024;
+	
+	private RequestLogs[] logs;
+	private RowPlan plan;
+	private List<IndexedLogsFieldExporter> indexedExporters;
+	private List<LogsFieldExporter> exporters;
+	private JsonRowSink sink;
+	private int next;
+
+	@Setup
+	public void setup() {
+		logs = new SyntheticLogs().next(LOG_COUNT).toArray(new RequestLogs[LOG_COUNT]);
+		plan = RowPlan.forExporterSet(new BasicFieldExporterSet());
+		indexedExporters = plan.newExporters();
+		exporters = new BasicFieldExporterSet().getExporters();
+		sink = new JsonRowSink(plan);
+	}
+
+	private RequestLogs nextLog() {
+		RequestLogs log = logs[next];
+		next = (next + 1) & (LOG_COUNT - 1);
+		return log;
+	}
+
+	@Benchmark
+	public int indexedExportersToJson() {
+		RequestLogs log = nextLog();
+		sink.startRow();
+		for (int exporterIndex = 0; exporterIndex < indexedExporters.size(); exporterIndex++) {
+			sink.selectExporter(exporterIndex);
+			indexedExporters.get(exporterIndex).writeFields(log, sink);
+		}
+		sink.endRow();
+		return sink.getRow().size();
+	}
+
+	@Benchmark
+	public Map<String, Object> namedExportersToMap() throws Exception {
+		RequestLogs log = nextLog();
+		Map<String, Object> row = new HashMap<String, Object>();
+		int slot = 0;
+		for (LogsFieldExporter exporter : exporters) {
+			exporter.processLog(log);
+			for (int fieldIndex = 0; fieldIndex < exporter.getFieldCount(); fieldIndex++, slot++) {
+				Object value = exporter.getField(plan.getFieldName(slot));
+				if (value != null) {
+					AnalysisUtility.putJsonValueFormatted(row, plan.getFieldName(slot), value, plan.getFieldType(slot));
+				}
+			}
+		}
+		return row;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.example.BasicFieldExporterSet;
+import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.InsertAllBatch;
+import com.streak.logging.utils.JsonRowSink;
+import com.streak.logging.utils.RowPlan;
+import com.streak.logging.utils.Utf8JsonBuffer;
+
+/**
+ * Builds the body of an insertAll request from rows that have already been
+ * transformed: the exact row size check done before every row is added to
+ * a batch, the serialized batch body that BigqueryIngester sends, and the
+ * model objects serialized by the JSON factory that the row map API used to
+ * send.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsertAllBodyBenchmark {
+	@Param({ "500" })
+	private int rowCount;
+	
+	private Utf8JsonBuffer[] rows;
+	private String[] insertIds;
+	private List<Map<String, Object>> rowMaps;
+	private InsertAllBatch batch;
+	private JsonFactory jsonFactory;
+
+	@Setup
+	public void setup() throws Exception {
+		RowPlan plan = RowPlan.forExporterSet(new BasicFieldExporterSet());
+		List<IndexedLogsFieldExporter> exporters = plan.newExporters();
+		List<LogsFieldExporter> namedExporters = new BasicFieldExporterSet().getExporters();
+		JsonRowSink sink = new JsonRowSink(plan);
+		List<RequestLogs> logs = new SyntheticLogs().next(rowCount);
+		
+		rows = new Utf8JsonBuffer[rowCount];
+		insertIds = new String[rowCount];
+		rowMaps = new ArrayList<>(rowCount);
+		for (int i = 0; i < rowCount; i++) {
+			RequestLogs log = logs.get(i);
+			sink.startRow();
+			for (int exporterIndex = 0; exporterIndex < exporters.size(); exporterIndex++) {
+				sink.selectExporter(exporterIndex);
+				exporters.get(exporterIndex).writeFields(log, sink);
+			}
+			sink.endRow();
+			
+			rows[i] = new Utf8JsonBuffer(sink.getRow().size());
+			rows[i].writeRaw(sink.getRow());
+			insertIds[i] = log.getRequestId();
+			
+			Map<String, Object> rowMap = new HashMap<String, Object>();
+			int slot = 0;
+			for (LogsFieldExporter exporter : namedExporters) {
+				exporter.processLog(log);
+				for (int fieldIndex = 0; fieldIndex < exporter.getFieldCount(); fieldIndex++, slot++) {
+					Object value = exporter.getField(plan.getFieldName(slot));
+					if (value != null) {
+						AnalysisUtility.putJsonValueFormatted(rowMap, plan.getFieldName(slot), value, plan.getFieldType(slot));
+					}
+				}
+			}
+			rowMaps.add(rowMap);
+		}
+		
+		batch = new InsertAllBatch();
+		jsonFactory = new JacksonFactory();
+	}
+
+	@Benchmark
+	public int rowSizeCheck() {
+		batch.reset();
+		int size = 0;
+		for (int i = 0; i < rowCount; i++) {
+			size += batch.sizeWithRow(insertIds[i], rows[i]);
+		}
+		return size;
+	}
+
+	@Benchmark
+	public int serializedBatchBody() {
+		batch.reset();
+		for (int i = 0; i < rowCount; i++) {
+			batch.addRow(insertIds[i], rows[i]);
+		}
+		batch.finish();
+		return batch.size();
+	}
+
+	@Benchmark
+	public int modelRequestBody() throws Exception {
+		List<TableDataInsertAllRequest.Rows> requestRows = new ArrayList<>(rowCount);
+		for (int i = 0; i < rowCount; i++) {
+			TableDataInsertAllRequest.Rows requestRow = new TableDataInsertAllRequest.Rows();
+			requestRow.setJson(rowMaps.get(i));
+			requestRow.setInsertId(insertIds[i]);
+			requestRows.add(requestRow);
+		}
+		TableDataInsertAllRequest content = new TableDataInsertAllRequest().setRows(requestRows);
+		return jsonFactory.toByteArray(content).length;
+	}
+}
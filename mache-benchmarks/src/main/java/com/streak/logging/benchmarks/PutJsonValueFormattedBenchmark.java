@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.appengine.api.datastore.Text;
+import com.streak.logging.utils.AnalysisUtility;
+
+/**
+ * Puts one value of each BigQuery type into a row map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PutJsonValueFormattedBenchmark {
+	private Map<String, Object> row;
+	private Text text;
+
+	@Setup
+	public void setup() {
+		row = new HashMap<String, Object>();
+		text = new Text("com.example.Handler doGet: processed item 123456 in 42ms");
+	}
+
+	@Benchmark
+	public Map<String, Object> string() throws Exception {
+		AnalysisUtility.putJsonValueFormatted(row, "resource", "/api/v1/boxes?limit=50", "string");
+		return row;
+	}
+
+	@Benchmark
+	public Map<String, Object> text() throws Exception {
+		AnalysisUtility.putJsonValueFormatted(row, "appLogs", text, "string");
+		return row;
+	}
+
+	@Benchmark
+	public Map<String, Object> integer() throws Exception {
+		AnalysisUtility.putJsonValueFormatted(row, "responseSize", 123456L, "integer");
+		return row;
+	}
+
+	@Benchmark
+	public Map<String, Object> floatValue() throws Exception {
+		AnalysisUtility.putJsonValueFormatted(row, "cost", 1.5e-7, "float");
+		return row;
+	}
+
+	@Benchmark
+	public Map<String, Object> timestamp() throws Exception {
+		AnalysisUtility.putJsonValueFormatted(row, "endTime", 1400000000.123456, "timestamp");
+		return row;
+	}
+
+	@Benchmark
+	public Map<String, Object> booleanValue() throws Exception {
+		AnalysisUtility.putJsonValueFormatted(row, "loadingRequest", Boolean.TRUE, "boolean");
+		return row;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.api.services.bigquery.model.TableSchema;
+import com.streak.logging.analysis.LogsFieldExporterSet;
+import com.streak.logging.analysis.example.BasicFieldExporterSet;
+import com.streak.logging.utils.AnalysisUtility;
+
+/**
+ * The schema hash and schema, as every export task and table creation asks for them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SchemaBenchmark {
+	private LogsFieldExporterSet exporterSet;
+
+	@Setup
+	public void setup() {
+		exporterSet = new BasicFieldExporterSet();
+	}
+
+	@Benchmark
+	public String computeSchemaHash() {
+		return AnalysisUtility.computeSchemaHash(exporterSet);
+	}
+
+	@Benchmark
+	public TableSchema createSchema() {
+		return AnalysisUtility.createSchema(exporterSet);
+	}
+}
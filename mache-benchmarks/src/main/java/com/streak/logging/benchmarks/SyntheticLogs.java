@@ -0,0 +1,143 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.google.appengine.api.log.AppLogLine;
+import com.google.appengine.api.log.LogService.LogLevel;
+import com.google.appengine.api.log.RequestLogs;
+
+/**
+ * Generates RequestLogs that look like the logs of a busy application, with
+ * a fixed seed so every run works on the same data.
+ */
+public class SyntheticLogs {
+	private static final String[] RESOURCES = {
+		"/",
+		"/api/v1/boxes?limit=50&cursor=CjsKFQoIdGltZXN0YW1wEgkI",
+		"/api/v1/users/self",
+		"/static/js/app.min.js",
+		"/_ah/queue/__deferred__",
+		"/bqlogging/logExportDirectToBigqueryTask?logRangeStartMs=1400000000000&logRangeEndMs=1400000060000",
+		"/search?q=%E6%97%A5%E6%9C%AC%E8%AA%9E&page=2",
+	};
+	
+	private static final String[] USER_AGENTS = {
+		"Mozilla/5.0 (Macintosh; Intel Mac OS X 10_9_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/34.0.1847.131 Safari/537.36",
+		"Mozilla/5.0 (Windows NT 6.1; WOW64; rv:28.0) Gecko/20100101 Firefox/28.0",
+		"AppEngine-Google; (+http://code.google.com/appengine)",
+	};
+	
+	private static final String[] METHODS = { "GET", "GET", "GET", "POST", "PUT" };
+	private static final int[] STATUSES = { 200, 200, 200, 200, 204, 302, 404, 500 };
+	
+	private final long seed;
+	private final Random random = new Random();
+	private final long firstEndTimeUsec;
+	private final long usecBetweenLogs;
+	private int generated;
+
+	/**
+	 * @param firstEndTimeUsec the end time of the first (newest) log
+	 * @param usecBetweenLogs how far apart consecutive logs end, logs are generated newest first like the LogService returns them
+	 */
+	public SyntheticLogs(long seed, long firstEndTimeUsec, long usecBetweenLogs) {
+		this.seed = seed;
+		this.firstEndTimeUsec = firstEndTimeUsec;
+		this.usecBetweenLogs = usecBetweenLogs;
+	}
+
+	public SyntheticLogs() {
+		this(42, 1400000000000000L, 1000);
+	}
+
+	public RequestLogs next() {
+		int index = generated++;
+		return create(index, firstEndTimeUsec - index * usecBetweenLogs);
+	}
+
+	/**
+	 * @return the log with the given index, the same log every time it is created
+	 */
+	public RequestLogs create(long index, long endTimeUsec) {
+		random.setSeed(seed * 31 + index);
+		RequestLogs log = new RequestLogs();
+		
+		long latencyUsec = 5000 + random.nextInt(2000000);
+		String resource = RESOURCES[random.nextInt(RESOURCES.length)];
+		String userAgent = USER_AGENTS[random.nextInt(USER_AGENTS.length)];
+		String method = METHODS[random.nextInt(METHODS.length)];
+		int status = STATUSES[random.nextInt(STATUSES.length)];
+		long responseSize = random.nextInt(200000);
+		String ip = "10." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256);
+		
+		log.setAppId("s~mache-benchmark");
+		log.setModuleId("default");
+		log.setVersionId("1.375839227452184342");
+		log.setRequestId(String.format("%016x%016x", random.nextLong(), random.nextLong()));
+		log.setOffset(Long.toString(index));
+		log.setIp(ip);
+		log.setNickname(random.nextInt(4) == 0 ? "" : "user" + random.nextInt(10000) + "@example.com");
+		log.setStartTimeUsec(endTimeUsec - latencyUsec);
+		log.setEndTimeUsec(endTimeUsec);
+		log.setLatency(latencyUsec);
+		log.setMcycles(random.nextInt(5000));
+		log.setApiMcycles(0);
+		log.setMethod(method);
+		log.setResource(resource);
+		log.setHttpVersion("HTTP/1.1");
+		log.setStatus(status);
+		log.setResponseSize(responseSize);
+		log.setReferrer(random.nextBoolean() ? null : "https://www.example.com/inbox");
+		log.setUserAgent(userAgent);
+		log.setUrlMapEntry("/.*");
+		log.setHost("mache-benchmark.appspot.com");
+		log.setCost(random.nextDouble() * 1e-6);
+		log.setTaskQueueName(resource.startsWith("/_ah/queue") ? "default" : null);
+		log.setTaskName(resource.startsWith("/_ah/queue") ? "task" + index : null);
+		log.setWasLoadingRequest(random.nextInt(100) == 0);
+		log.setPendingTime(random.nextInt(50000));
+		log.setReplicaIndex(-1);
+		log.setFinished(true);
+		log.setInstanceKey("00c61b117c" + Integer.toHexString(random.nextInt(16)));
+		log.setCombined(ip + " - - [" + endTimeUsec + "] \"" + method + " " + resource + " HTTP/1.1\" " + status + " " + responseSize + " - \"" + userAgent + "\"");
+		
+		int appLogLineCount = random.nextInt(6);
+		List<AppLogLine> appLogLines = new ArrayList<>(appLogLineCount);
+		for (int i = 0; i < appLogLineCount; i++) {
+			AppLogLine line = new AppLogLine();
+			line.setTimeUsec(endTimeUsec - latencyUsec + i * 1000);
+			line.setLogLevel(LogLevel.values()[random.nextInt(LogLevel.values().length)]);
+			line.setLogMessage("com.example.Handler doGet: processed item " + random.nextInt(1000000) + " in " + random.nextInt(500) + "ms");
+			appLogLines.add(line);
+		}
+		log.setAppLogLines(appLogLines);
+		
+		return log;
+	}
+
+	public List<RequestLogs> next(int count) {
+		List<RequestLogs> logs = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			logs.add(next());
+		}
+		return logs;
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks.fake;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.appengine.api.log.LogService;
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.BatchPolicy;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.LogExportDirectToBigqueryTask;
+import com.streak.logging.utils.RowPlan;
+
+/**
+ * Exports a window of generated logs to a local fake BigQuery and prints the
+ * throughput, to load test the whole export path on a laptop:
+ *
+ * java -cp target/benchmarks.jar com.streak.logging.benchmarks.fake.ExportThroughputRun \
+ *     [logsPerSecond] [windowSeconds] [maxConcurrentInserts] [insertLatencyMillis] [logBatchLatencyMillis] [transformThreads] [gzip]
+ */
+public class ExportThroughputRun {
+	public static void main(String[] args) throws Exception {
+		long logsPerSecond = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+		long windowSeconds = args.length > 1 ? Long.parseLong(args[1]) : 60;
+		int maxConcurrentInserts = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		long insertLatencyMillis = args.length > 3 ? Long.parseLong(args[3]) : 100;
+		long logBatchLatencyMillis = args.length > 4 ? Long.parseLong(args[4]) : 0;
+		int transformThreads = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+		boolean gzip = args.length > 6 && Boolean.parseBoolean(args[6]);
+		
+		FakeBigqueryServer server = new FakeBigqueryServer();
+		server.setLatencyMillis(insertLatencyMillis);
+		server.start();
+		
+		final FakeLogService logService = new FakeLogService(logsPerSecond);
+		logService.setBatchLatencyMillis(logBatchLatencyMillis);
+		
+		FakeExportConfiguration.setServer(server);
+		FakeExportConfiguration.setMaxConcurrentInserts(maxConcurrentInserts);
+		FakeExportConfiguration.setBatchPolicy(new BatchPolicy(BatchPolicy.DEFAULT_MAX_BYTES, BatchPolicy.DEFAULT_MAX_ROWS, 
+				BatchPolicy.DEFAULT_MAX_LINGER_MILLIS, gzip));
+		
+		try {
+			LogExportDirectToBigqueryTask task = new LogExportDirectToBigqueryTask() {
+				@Override
+				protected LogService getLogService() {
+					return logService;
+				}
+			};
+			RowPlan plan = RowPlan.forConfiguration(FakeExportConfiguration.class.getName());
+			
+			long endMs = 1400000000000L;
+			long startMs = endMs - windowSeconds * 1000;
+			
+			// The example exporter set creates new exporters every time, so they can be used on separate threads
+			List<List<IndexedLogsFieldExporter>> exportersPerThread = new ArrayList<>();
+			for (int i = 0; i < transformThreads; i++) {
+				exportersPerThread.add(plan.newExporters());
+			}
+			
+			long start = System.nanoTime();
+			Iterable<RequestLogs> logs = task.queryForLogs(startMs, endMs, plan.getConfiguration(), plan.getExporterSet(), null, plan.isAppLogsNeeded());
+			task.streamToBigquery(startMs, endMs, plan.getConfiguration(), plan, exportersPerThread, logs, null, null, null);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			
+			long rows = server.getInsertedRowCount();
+			System.out.println(String.format("%d of %d rows in %d requests, %.1f MB, %.2f s, %.0f rows/s",
+					rows, logService.getLogCount(startMs, endMs), server.getInsertAllRequestCount(), 
+					server.getInsertAllBytes() / 1e6, seconds, rows / seconds));
+		}
+		finally {
+			server.stop();
+		}
+	}
+}
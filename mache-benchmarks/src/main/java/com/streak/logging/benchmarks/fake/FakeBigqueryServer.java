@@ -0,0 +1,433 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks.fake;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process HTTP server that answers the BigQuery calls mache makes:
+ * tabledata.insertAll, tables.insert/get/update/delete and jobs.insert/get. Point
+ * a client from {@link #newBigquery()} at it to run exports without Google
+ * services.
+ *
+ * Every request can be delayed, a share of requests can fail with a 503 and
+ * a share of the rows of each insertAll can be rejected with a given reason.
+ * The server counts requests, rows and bytes, and can keep the inserted
+ * rows for inspection.
+ *
+ * Tables aren't checked when rows are inserted and jobs are done as soon as
+ * they are inserted.
+ */
+public class FakeBigqueryServer {
+	private static final String SERVICE_PATH = "bigquery/v2/";
+	
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final Random random = new Random();
+	
+	private final Map<String, JsonObject> tables = new ConcurrentHashMap<>();
+	private final Map<String, JsonObject> jobs = new ConcurrentHashMap<>();
+	private final Map<String, List<String>> capturedRows = new ConcurrentHashMap<>();
+	private final Set<String> capturedInsertIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	private final AtomicLong insertAllRequests = new AtomicLong();
+	private final AtomicLong insertedRows = new AtomicLong();
+	private final AtomicLong rejectedRows = new AtomicLong();
+	private final AtomicLong insertAllBytes = new AtomicLong();
+	private final AtomicLong failedRequests = new AtomicLong();
+	
+	private volatile long latencyMillis;
+	private volatile double requestFailureRate;
+	private volatile double rowFailureRate;
+	private volatile String rowFailureReason = "backendError";
+	private volatile boolean captureRows;
+
+	/**
+	 * @param port the port to listen on, 0 for any free port
+	 * @param threads the number of requests served at once
+	 */
+	public FakeBigqueryServer(int port, int threads) throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.createContext("/" + SERVICE_PATH, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					FakeBigqueryServer.this.handle(exchange);
+				}
+				catch (RuntimeException e) {
+					respond(exchange, 500, error(500, "internalError", e.toString()));
+				}
+				finally {
+					exchange.close();
+				}
+			}
+		});
+	}
+
+	public FakeBigqueryServer() throws IOException {
+		this(0, 16);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public String getRootUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/";
+	}
+
+	/**
+	 * @return a client that sends every request to this server
+	 */
+	public Bigquery newBigquery() {
+		return new Bigquery.Builder(new NetHttpTransport(), new JacksonFactory(), null)
+				.setRootUrl(getRootUrl())
+				.setApplicationName("mache-fake-bigquery")
+				.build();
+	}
+
+	/**
+	 * @param latencyMillis how long every request takes before it is answered
+	 */
+	public void setLatencyMillis(long latencyMillis) {
+		this.latencyMillis = latencyMillis;
+	}
+
+	/**
+	 * @param requestFailureRate the share of requests that fail with a 503 backendError
+	 */
+	public void setRequestFailureRate(double requestFailureRate) {
+		this.requestFailureRate = requestFailureRate;
+	}
+
+	/**
+	 * @param rowFailureRate the share of inserted rows that are rejected
+	 * @param reason the reason rejected rows are reported with, e.g. backendError or invalid
+	 */
+	public void setRowFailureRate(double rowFailureRate, String reason) {
+		this.rowFailureRate = rowFailureRate;
+		this.rowFailureReason = reason;
+	}
+
+	/**
+	 * @param captureRows whether to keep inserted rows, see {@link #getCapturedRows(String, String, String)}
+	 */
+	public void setCaptureRows(boolean captureRows) {
+		this.captureRows = captureRows;
+	}
+
+	public long getInsertAllRequestCount() {
+		return insertAllRequests.get();
+	}
+
+	public long getInsertedRowCount() {
+		return insertedRows.get();
+	}
+
+	public long getRejectedRowCount() {
+		return rejectedRows.get();
+	}
+
+	/**
+	 * @return the bytes of the insertAll request bodies as sent, compressed if they were gzip encoded
+	 */
+	public long getInsertAllBytes() {
+		return insertAllBytes.get();
+	}
+
+	public long getFailedRequestCount() {
+		return failedRequests.get();
+	}
+
+	/**
+	 * @return the JSON of the rows inserted into a table while rows were captured
+	 */
+	public List<String> getCapturedRows(String projectId, String datasetId, String tableId) {
+		List<String> rows = capturedRows.get(tableKey(projectId, datasetId, tableId));
+		return rows == null ? Collections.<String>emptyList() : rows;
+	}
+
+	/**
+	 * @return the number of distinct insert ids of the rows inserted while rows were captured
+	 */
+	public int getCapturedInsertIdCount() {
+		return capturedInsertIds.size();
+	}
+
+	public boolean hasTable(String projectId, String datasetId, String tableId) {
+		return tables.containsKey(tableKey(projectId, datasetId, tableId));
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] wireBody = readBody(exchange.getRequestBody());
+		byte[] body = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding")) 
+				? readBody(new GZIPInputStream(new ByteArrayInputStream(wireBody))) : wireBody;
+		sleep(latencyMillis);
+		
+		String path = exchange.getRequestURI().getPath().substring(SERVICE_PATH.length() + 1);
+		String[] segments = path.split("/");
+		String method = exchange.getRequestMethod();
+		
+		if (requestFailureRate > 0 && random.nextDouble() < requestFailureRate) {
+			failedRequests.incrementAndGet();
+			respond(exchange, 503, error(503, "backendError", "Injected failure"));
+			return;
+		}
+		
+		// projects/{projectId}/datasets/{datasetId}/tables[/{tableId}[/insertAll]]
+		if (segments.length >= 5 && "projects".equals(segments[0]) && "datasets".equals(segments[2]) && "tables".equals(segments[4])) {
+			String projectId = segments[1];
+			String datasetId = segments[3];
+			if (segments.length == 7 && "insertAll".equals(segments[6]) && "POST".equals(method)) {
+				insertAll(exchange, projectId, datasetId, segments[5], body, wireBody.length);
+				return;
+			}
+			if (segments.length == 5 && "POST".equals(method)) {
+				insertTable(exchange, projectId, datasetId, body);
+				return;
+			}
+			if (segments.length == 6) {
+				String key = tableKey(projectId, datasetId, segments[5]);
+				if ("GET".equals(method)) {
+					JsonObject table = tables.get(key);
+					respond(exchange, table == null ? 404 : 200, table == null ? error(404, "notFound", "Not found: Table " + key) : table);
+					return;
+				}
+				if ("PUT".equals(method)) {
+					updateTable(exchange, key, body);
+					return;
+				}
+				if ("DELETE".equals(method)) {
+					JsonObject table = tables.remove(key);
+					respond(exchange, table == null ? 404 : 204, table == null ? error(404, "notFound", "Not found: Table " + key) : null);
+					return;
+				}
+			}
+		}
+		
+		// projects/{projectId}/jobs[/{jobId}]
+		if (segments.length >= 3 && "projects".equals(segments[0]) && "jobs".equals(segments[2])) {
+			if (segments.length == 3 && "POST".equals(method)) {
+				insertJob(exchange, segments[1], body);
+				return;
+			}
+			if (segments.length == 4 && "GET".equals(method)) {
+				JsonObject job = jobs.get(segments[1] + ":" + segments[3]);
+				respond(exchange, job == null ? 404 : 200, job == null ? error(404, "notFound", "Not found: Job " + segments[3]) : job);
+				return;
+			}
+		}
+		
+		respond(exchange, 404, error(404, "notFound", "Not implemented by the fake: " + method + " " + path));
+	}
+
+	private void insertAll(HttpExchange exchange, String projectId, String datasetId, String tableId, byte[] body, int wireBytes) throws IOException {
+		insertAllRequests.incrementAndGet();
+		insertAllBytes.addAndGet(wireBytes);
+		
+		JsonObject request = new JsonParser().parse(new String(body, "UTF-8")).getAsJsonObject();
+		JsonArray rows = request.getAsJsonArray("rows");
+		
+		JsonArray insertErrors = new JsonArray();
+		List<String> captured = captureRows ? getOrCreateCapture(tableKey(projectId, datasetId, tableId)) : null;
+		for (int i = 0; i < rows.size(); i++) {
+			if (rowFailureRate > 0 && random.nextDouble() < rowFailureRate) {
+				JsonObject rowError = new JsonObject();
+				rowError.addProperty("index", i);
+				JsonArray errors = new JsonArray();
+				errors.add(errorProto(rowFailureReason, "Injected row failure"));
+				rowError.add("errors", errors);
+				insertErrors.add(rowError);
+				continue;
+			}
+			
+			JsonObject row = rows.get(i).getAsJsonObject();
+			if (captured != null) {
+				captured.add(row.get("json").toString());
+				JsonElement insertId = row.get("insertId");
+				if (insertId != null) {
+					capturedInsertIds.add(insertId.getAsString());
+				}
+			}
+		}
+		insertedRows.addAndGet(rows.size() - insertErrors.size());
+		rejectedRows.addAndGet(insertErrors.size());
+		
+		JsonObject response = new JsonObject();
+		response.addProperty("kind", "bigquery#tableDataInsertAllResponse");
+		if (insertErrors.size() > 0) {
+			response.add("insertErrors", insertErrors);
+		}
+		respond(exchange, 200, response);
+	}
+
+	private List<String> getOrCreateCapture(String key) {
+		synchronized (capturedRows) {
+			List<String> captured = capturedRows.get(key);
+			if (captured == null) {
+				captured = Collections.synchronizedList(new ArrayList<String>());
+				capturedRows.put(key, captured);
+			}
+			return captured;
+		}
+	}
+
+	private void insertTable(HttpExchange exchange, String projectId, String datasetId, byte[] body) throws IOException {
+		JsonObject table = new JsonParser().parse(new String(body, "UTF-8")).getAsJsonObject();
+		String tableId = table.getAsJsonObject("tableReference").get("tableId").getAsString();
+		String key = tableKey(projectId, datasetId, tableId);
+		
+		table.addProperty("kind", "bigquery#table");
+		table.addProperty("id", key);
+		table.addProperty("creationTime", Long.toString(System.currentTimeMillis()));
+		synchronized (tables) {
+			if (tables.containsKey(key)) {
+				respond(exchange, 409, error(409, "duplicate", "Already Exists: Table " + key));
+				return;
+			}
+			tables.put(key, table);
+		}
+		respond(exchange, 200, table);
+	}
+
+	private void updateTable(HttpExchange exchange, String key, byte[] body) throws IOException {
+		JsonObject update = new JsonParser().parse(new String(body, "UTF-8")).getAsJsonObject();
+		synchronized (tables) {
+			JsonObject table = tables.get(key);
+			if (table == null) {
+				respond(exchange, 404, error(404, "notFound", "Not found: Table " + key));
+				return;
+			}
+			if (update.has("schema")) {
+				table.add("schema", update.get("schema"));
+			}
+			respond(exchange, 200, table);
+		}
+	}
+
+	private void insertJob(HttpExchange exchange, String projectId, byte[] body) throws IOException {
+		JsonObject job = new JsonParser().parse(new String(body, "UTF-8")).getAsJsonObject();
+		JsonObject jobReference = job.getAsJsonObject("jobReference");
+		if (jobReference == null) {
+			jobReference = new JsonObject();
+			job.add("jobReference", jobReference);
+		}
+		if (jobReference.get("jobId") == null) {
+			jobReference.addProperty("jobId", "job_" + UUID.randomUUID().toString().replace("-", ""));
+		}
+		jobReference.addProperty("projectId", projectId);
+		
+		JsonObject status = new JsonObject();
+		status.addProperty("state", "DONE");
+		job.addProperty("kind", "bigquery#job");
+		job.add("status", status);
+		jobs.put(projectId + ":" + jobReference.get("jobId").getAsString(), job);
+		respond(exchange, 200, job);
+	}
+
+	private static String tableKey(String projectId, String datasetId, String tableId) {
+		return projectId + ":" + datasetId + "." + tableId;
+	}
+
+	private static JsonObject errorProto(String reason, String message) {
+		JsonObject error = new JsonObject();
+		error.addProperty("reason", reason);
+		error.addProperty("message", message);
+		return error;
+	}
+
+	private static JsonObject error(int code, String reason, String message) {
+		JsonArray errors = new JsonArray();
+		errors.add(errorProto(reason, message));
+		JsonObject error = new JsonObject();
+		error.addProperty("code", code);
+		error.addProperty("message", message);
+		error.add("errors", errors);
+		JsonObject response = new JsonObject();
+		response.add("error", error);
+		return response;
+	}
+
+	private static void respond(HttpExchange exchange, int status, JsonObject body) throws IOException {
+		if (body == null) {
+			exchange.sendResponseHeaders(status, -1);
+			return;
+		}
+		byte[] bytes = body.toString().getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static byte[] readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	private static void sleep(long millis) {
+		if (millis > 0) {
+			try {
+				Thread.sleep(millis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
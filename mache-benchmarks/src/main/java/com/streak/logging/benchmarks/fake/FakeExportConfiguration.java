@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks.fake;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.appengine.api.log.LogService.LogLevel;
+import com.streak.logging.analysis.AdaptiveWindowPolicy;
+import com.streak.logging.analysis.BatchPolicy;
+import com.streak.logging.analysis.DeadLetterSink;
+import com.streak.logging.analysis.LogsFieldExporterSet;
+import com.streak.logging.analysis.RetryPolicy;
+import com.streak.logging.analysis.ShardingPolicy;
+import com.streak.logging.analysis.TablePartitioning;
+import com.streak.logging.analysis.TunableLogsExportConfiguration;
+import com.streak.logging.analysis.example.BasicFieldExporterSet;
+
+/**
+ * Exports BasicFieldExporterSet to a {@link FakeBigqueryServer}. Mache
+ * instantiates configurations by class name, so the server and the tuning
+ * knobs are set on static fields before the first export.
+ */
+public class FakeExportConfiguration implements TunableLogsExportConfiguration {
+	public static final String PROJECT_ID = "fake-project";
+	public static final String DATASET_ID = "fake_dataset";
+	public static final String TABLE_ID = "requests";
+	
+	private static volatile Bigquery bigquery;
+	private static volatile Integer maxConcurrentInserts;
+	private static volatile BatchPolicy batchPolicy;
+	private static volatile RetryPolicy retryPolicy;
+
+	public static void setServer(FakeBigqueryServer server) {
+		bigquery = server.newBigquery();
+	}
+
+	public static void setMaxConcurrentInserts(Integer maxConcurrentInserts) {
+		FakeExportConfiguration.maxConcurrentInserts = maxConcurrentInserts;
+	}
+
+	public static void setBatchPolicy(BatchPolicy batchPolicy) {
+		FakeExportConfiguration.batchPolicy = batchPolicy;
+	}
+
+	public static void setRetryPolicy(RetryPolicy retryPolicy) {
+		FakeExportConfiguration.retryPolicy = retryPolicy;
+	}
+
+	@Override
+	public String getBigqueryDatasetId() {
+		return DATASET_ID;
+	}
+
+	@Override
+	public String getBigqueryProjectId() {
+		return PROJECT_ID;
+	}
+
+	@Override
+	public String getBigqueryTableId(long logRangeStartMs, long logRangeEndMs) {
+		return TABLE_ID;
+	}
+
+	@Override
+	public String getBigqueryNextTableId(long logRangeStartMs, long logRangeEndMs) {
+		return TABLE_ID;
+	}
+
+	@Override
+	public String getQueueName() {
+		return null;
+	}
+
+	@Override
+	public long getMillisPerExport() {
+		return 60 * 1000;
+	}
+
+	@Override
+	public LogsFieldExporterSet getExporterSet() {
+		return new BasicFieldExporterSet();
+	}
+
+	@Override
+	public LogLevel getLogLevel() {
+		return null;
+	}
+
+	@Override
+	public Bigquery getBigquery() {
+		if (bigquery == null) {
+			throw new IllegalStateException("Call setServer before exporting");
+		}
+		return bigquery;
+	}
+
+	@Override
+	public Integer getCustomTaskFailureResponseCode() {
+		return null;
+	}
+
+	@Override
+	public Integer getMaxConcurrentInserts() {
+		return maxConcurrentInserts;
+	}
+
+	@Override
+	public BatchPolicy getBatchPolicy() {
+		return batchPolicy;
+	}
+
+	@Override
+	public ShardingPolicy getShardingPolicy() {
+		return null;
+	}
+
+	@Override
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	@Override
+	public DeadLetterSink getDeadLetterSink() {
+		return null;
+	}
+
+	@Override
+	public String getPullQueueName() {
+		return null;
+	}
+
+	@Override
+	public AdaptiveWindowPolicy getAdaptiveWindowPolicy() {
+		return null;
+	}
+
+	@Override
+	public TablePartitioning getTablePartitioning() {
+		return null;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.benchmarks.fake;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.appengine.api.log.LogQuery;
+import com.google.appengine.api.log.LogService;
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.benchmarks.SyntheticLogs;
+
+/**
+ * A LogService that generates logs at a fixed rate instead of reading them.
+ *
+ * Logs end every 1/logsPerSecond seconds, on a grid that doesn't depend on
+ * the query, so adjacent windows never overlap and a log is the same every
+ * time it is fetched. Like the real service, logs are returned newest
+ * first and a query with an offset resumes after the log with that offset.
+ * The fetch latency of the real service can be simulated per batch.
+ * Versions and log levels of the query are ignored.
+ */
+public class FakeLogService implements LogService {
+	private static final int DEFAULT_BATCH_SIZE = 20;
+	
+	private final long usecBetweenLogs;
+	private final long seed;
+	private volatile long batchLatencyMillis;
+
+	public FakeLogService(long logsPerSecond) {
+		this(logsPerSecond, 42);
+	}
+
+	public FakeLogService(long logsPerSecond, long seed) {
+		if (logsPerSecond < 1 || logsPerSecond > 1000000) {
+			throw new IllegalArgumentException("logsPerSecond must be between 1 and 1000000, got " + logsPerSecond);
+		}
+		this.usecBetweenLogs = 1000000 / logsPerSecond;
+		this.seed = seed;
+	}
+
+	/**
+	 * @param batchLatencyMillis how long fetching each batch of logs takes
+	 */
+	public void setBatchLatencyMillis(long batchLatencyMillis) {
+		this.batchLatencyMillis = batchLatencyMillis;
+	}
+
+	/**
+	 * @return the number of logs a query of the given window returns
+	 */
+	public long getLogCount(long startTimeMillis, long endTimeMillis) {
+		return Math.max(0, lastIndex(endTimeMillis * 1000) - firstIndex(startTimeMillis * 1000) + 1);
+	}
+
+	@Override
+	public Iterable<RequestLogs> fetch(LogQuery query) {
+		long startTimeUsec = query.getStartTimeUsec() != null ? query.getStartTimeUsec() : 0;
+		long endTimeUsec = query.getEndTimeUsec() != null ? query.getEndTimeUsec() : System.currentTimeMillis() * 1000;
+		final long firstIndex = firstIndex(startTimeUsec);
+		long lastIndex = lastIndex(endTimeUsec);
+		if (query.getOffset() != null) {
+			lastIndex = Math.min(lastIndex, Long.parseLong(query.getOffset()) - 1);
+		}
+		final long newestIndex = lastIndex;
+		final int batchSize = query.getBatchSize() != null ? query.getBatchSize() : DEFAULT_BATCH_SIZE;
+		final boolean includeAppLogs = query.getIncludeAppLogs() != null && query.getIncludeAppLogs();
+		
+		return new Iterable<RequestLogs>() {
+			@Override
+			public Iterator<RequestLogs> iterator() {
+				return new Iterator<RequestLogs>() {
+					private final SyntheticLogs logs = new SyntheticLogs(seed, 0, usecBetweenLogs);
+					private long index = newestIndex;
+					private int returned;
+
+					@Override
+					public boolean hasNext() {
+						return index >= firstIndex;
+					}
+
+					@Override
+					public RequestLogs next() {
+						if (!hasNext()) {
+							throw new NoSuchElementException();
+						}
+						if (returned++ % batchSize == 0) {
+							simulateLatency();
+						}
+						RequestLogs log = logs.create(index, index * usecBetweenLogs);
+						if (!includeAppLogs) {
+							log.getAppLogLines().clear();
+						}
+						index--;
+						return log;
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	// logs end at index * usecBetweenLogs, windows include their start and exclude their end
+	private long firstIndex(long startTimeUsec) {
+		return (startTimeUsec + usecBetweenLogs - 1) / usecBetweenLogs;
+	}
+
+	private long lastIndex(long endTimeUsec) {
+		return (endTimeUsec - 1) / usecBetweenLogs;
+	}
+
+	private void simulateLatency() {
+		if (batchLatencyMillis > 0) {
+			try {
+				Thread.sleep(batchLatencyMillis);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -27,11 +27,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.api.client.googleapis.extensions.appengine.auth.oauth2.AppIdentityCredential;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.Bigquery.Jobs.Insert;
 import com.google.api.services.bigquery.model.Job;
@@ -61,8 +56,6 @@ import com.streak.logging.utils.AnalysisUtility;
 @SuppressWarnings("serial")
 public class BuiltinDatastoreToBigqueryIngesterTask extends HttpServlet {
 	private static final int MILLIS_TO_ENQUEUE = 180000; // 3 min
-	private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
-	private static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
 	private static final String BUILTIN_DATASTORE_TO_BIGQUERY_INGESTOR_TASK_PATH = "/builtinDatastoreToBigqueryIngestorTask";
 
@@ -142,9 +135,7 @@ public class BuiltinDatastoreToBigqueryIngesterTask extends HttpServlet {
 		log.info("backup complete, starting bigquery ingestion");
 		log.info("gsHandleOfBackup: " + gsHandleOfBackup);
 
-		AppIdentityCredential credential = new AppIdentityCredential(AnalysisConstants.SCOPES);
-
-		Bigquery bigquery = new Bigquery.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential).setApplicationName("Streak Logs").build();
+		Bigquery bigquery = AnalysisUtility.getDefaultBigquery();
 
 		String datatableSuffix = "";
 		if (exporterConfig.appendTimestampToDatatables()) {
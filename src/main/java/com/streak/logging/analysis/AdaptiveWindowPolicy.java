@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * Sizes export windows from the log volume and export time of recent
+ * windows, so quiet periods are exported in a few wide windows and busy
+ * periods in many narrow ones.
+ *
+ * A window is sized to hold about targetRowsPerWindow rows, and to take at
+ * most maxExportMillis to export at the rate recent windows were exported.
+ * Its length is a multiple of minWindowMillis, at most maxWindowMillis, and
+ * it never crosses a multiple of maxWindowMillis, so with a maxWindowMillis
+ * that divides the period of your tables a window always falls into a
+ * single table.
+ */
+public class AdaptiveWindowPolicy {
+	private final long minWindowMillis;
+	private final long maxWindowMillis;
+	private final long targetRowsPerWindow;
+	private final long maxExportMillis;
+
+	/**
+	 * @param minWindowMillis the shortest window, and the unit of window lengths
+	 * @param maxWindowMillis the longest window, a multiple of minWindowMillis
+	 * @param targetRowsPerWindow the number of rows a window should hold
+	 * @param maxExportMillis the time a window should take to export at most
+	 */
+	public AdaptiveWindowPolicy(long minWindowMillis, long maxWindowMillis, long targetRowsPerWindow, long maxExportMillis) {
+		if (minWindowMillis < 1 || maxWindowMillis < minWindowMillis || maxWindowMillis % minWindowMillis != 0 
+				|| targetRowsPerWindow < 1 || maxExportMillis < 1) {
+			throw new IllegalArgumentException("Invalid adaptive window policy: minWindowMillis=" + minWindowMillis 
+					+ ", maxWindowMillis=" + maxWindowMillis + ", targetRowsPerWindow=" + targetRowsPerWindow 
+					+ ", maxExportMillis=" + maxExportMillis);
+		}
+		this.minWindowMillis = minWindowMillis;
+		this.maxWindowMillis = maxWindowMillis;
+		this.targetRowsPerWindow = targetRowsPerWindow;
+		this.maxExportMillis = maxExportMillis;
+	}
+
+	public long getMinWindowMillis() {
+		return minWindowMillis;
+	}
+
+	public long getMaxWindowMillis() {
+		return maxWindowMillis;
+	}
+
+	public long getTargetRowsPerWindow() {
+		return targetRowsPerWindow;
+	}
+
+	public long getMaxExportMillis() {
+		return maxExportMillis;
+	}
+
+	/**
+	 * @param rowsPerMilli the rows per millisecond of log time in recent windows, or null if none have been exported
+	 * @param exportMillisPerRow the export time per row of recent windows, or null if they had no rows
+	 * @param defaultMillis the window length to use without recent windows
+	 * @return the length of the next window
+	 */
+	public long getWindowMillis(Double rowsPerMilli, Double exportMillisPerRow, long defaultMillis) {
+		double windowMillis;
+		if (rowsPerMilli == null) {
+			windowMillis = defaultMillis;
+		}
+		else if (rowsPerMilli == 0) {
+			windowMillis = maxWindowMillis;
+		}
+		else {
+			windowMillis = targetRowsPerWindow / rowsPerMilli;
+			if (exportMillisPerRow != null && exportMillisPerRow > 0) {
+				windowMillis = Math.min(windowMillis, maxExportMillis / (rowsPerMilli * exportMillisPerRow));
+			}
+		}
+		long units = (long) Math.floor(windowMillis / minWindowMillis);
+		return Math.max(1, Math.min(units, maxWindowMillis / minWindowMillis)) * minWindowMillis;
+	}
+
+	/**
+	 * @return the end of the window starting at startMs, which doesn't cross a multiple of maxWindowMillis
+	 */
+	public long getWindowEnd(long startMs, long windowMillis) {
+		long nextBoundary = (startMs / maxWindowMillis + 1) * maxWindowMillis;
+		return Math.min(startMs + windowMillis, nextBoundary);
+	}
+
+	@Override
+	public String toString() {
+		return "AdaptiveWindowPolicy[minWindowMillis=" + minWindowMillis + ", maxWindowMillis=" + maxWindowMillis 
+				+ ", targetRowsPerWindow=" + targetRowsPerWindow + ", maxExportMillis=" + maxExportMillis + "]";
+	}
+}
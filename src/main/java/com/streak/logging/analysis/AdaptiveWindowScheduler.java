@@ -0,0 +1,150 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.streak.logging.utils.AnalysisConstants;
+import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.ExportCheckpoint;
+import com.streak.logging.utils.ExportWatermark;
+import com.streak.logging.utils.TaskBatchEnqueuer;
+
+/**
+ * Enqueues the windows of a configuration with an {@link AdaptiveWindowPolicy}.
+ *
+ * Every cron run plans windows from the configuration's {@link ExportWatermark}
+ * until the watermark passes the current time, sizing them from the recent
+ * windows that have been exported. Windows are named by their range like
+ * fixed windows, and the watermark makes sure no range is planned twice.
+ * Each window runs once it has ended, like fixed windows.
+ */
+public class AdaptiveWindowScheduler {
+	private static final Logger log = Logger.getLogger("bqlogging");
+
+	/**
+	 * @return how many of the windows' tasks were new and how many had already been enqueued by an earlier run
+	 */
+	public static TaskBatchEnqueuer.Result enqueueWindows(String logsExporterConfigurationClassName, LogsExportConfiguration config, boolean profileExporters) {
+		AdaptiveWindowPolicy policy = ExportTuning.getAdaptiveWindowPolicy(config);
+		long now = System.currentTimeMillis();
+		
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		List<long[]> windows = new ArrayList<>();
+		Transaction txn = datastore.beginTransaction();
+		try {
+			ExportWatermark watermark = ExportWatermark.load(datastore, txn, logsExporterConfigurationClassName);
+			if (watermark == null) {
+				// Start with the window that just ended, like fixed windows
+				long startMs = AnalysisUtility.round(now, policy.getMinWindowMillis()) - policy.getMinWindowMillis();
+				watermark = new ExportWatermark(logsExporterConfigurationClassName, startMs);
+			}
+			
+			// Windows a previous run planned but may not have enqueued
+			for (int i = 0; i < watermark.getRecentWindowCount(); i++) {
+				if (watermark.getRecentWindowStart(i) >= watermark.getEnqueuedUntilMs()) {
+					windows.add(new long[] { watermark.getRecentWindowStart(i), watermark.getRecentWindowEnd(i) });
+				}
+			}
+			
+			long windowMillis = getWindowMillis(policy, config, watermark);
+			while (watermark.getWatermarkMs() < now && windows.size() < AnalysisConstants.NUM_TASKS_TO_GENERATE_PER_ENQUEUE) {
+				long startMs = watermark.getWatermarkMs();
+				long endMs = policy.getWindowEnd(startMs, windowMillis);
+				watermark.addWindow(endMs);
+				windows.add(new long[] { startMs, endMs });
+			}
+			
+			watermark.save(datastore, txn);
+			txn.commit();
+		}
+		finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		if (windows.isEmpty()) {
+			return new TaskBatchEnqueuer.Result();
+		}
+		
+		long enqueuedUntilMs = 0;
+		List<TaskOptions> tasks = new ArrayList<>();
+		for (long[] window : windows) {
+			TaskOptions t = LogExportDirectToBigqueryTask.createTaskOptions(logsExporterConfigurationClassName, config, window[0], window[1], profileExporters);
+			t.etaMillis(window[1] + AnalysisConstants.MILLIS_TO_DELAY_TASKS_BEFORE_RUNNING);
+			tasks.add(t);
+			enqueuedUntilMs = Math.max(enqueuedUntilMs, window[1]);
+		}
+		TaskBatchEnqueuer.Result result = TaskBatchEnqueuer.enqueue(LogExportDirectToBigqueryTask.getQueue(config), tasks);
+		log.info("Enqueued windows of " + logsExporterConfigurationClassName + " until " + enqueuedUntilMs + ": " + result);
+		
+		txn = datastore.beginTransaction();
+		try {
+			ExportWatermark watermark = ExportWatermark.load(datastore, txn, logsExporterConfigurationClassName);
+			watermark.setEnqueuedUntilMs(enqueuedUntilMs);
+			watermark.save(datastore, txn);
+			txn.commit();
+		}
+		catch (ConcurrentModificationException e) {
+			// Another run planned more windows meanwhile, it or the next run enqueues these again under the same names
+			log.warning("Couldn't record windows enqueued until " + enqueuedUntilMs + ": " + e.getMessage());
+		}
+		finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return the length of the next windows, from the rows and export time of the recent windows that have been exported
+	 */
+	private static long getWindowMillis(AdaptiveWindowPolicy policy, LogsExportConfiguration config, ExportWatermark watermark) {
+		List<String> taskNames = new ArrayList<>();
+		for (int i = 0; i < watermark.getRecentWindowCount(); i++) {
+			taskNames.add(LogExportDirectToBigqueryTask.getTaskName(watermark.getRecentWindowStart(i), watermark.getRecentWindowEnd(i)));
+		}
+		Map<String, ExportCheckpoint.Exported> exported = ExportCheckpoint.getExported(taskNames);
+		
+		long windowMillis = 0;
+		long rows = 0;
+		long exportMillis = 0;
+		for (int i = 0; i < taskNames.size(); i++) {
+			ExportCheckpoint.Exported window = exported.get(taskNames.get(i));
+			if (window != null) {
+				windowMillis += watermark.getRecentWindowEnd(i) - watermark.getRecentWindowStart(i);
+				rows += window.getRowCount();
+				exportMillis += window.getExportMillis();
+			}
+		}
+		
+		Double rowsPerMilli = windowMillis == 0 ? null : (double) rows / windowMillis;
+		Double exportMillisPerRow = rows == 0 ? null : (double) exportMillis / rows;
+		long nextWindowMillis = policy.getWindowMillis(rowsPerMilli, exportMillisPerRow, config.getMillisPerExport());
+		log.info("Next windows " + nextWindowMillis + "ms: " + rows + " rows in " + windowMillis + "ms of recent windows, exported in " + exportMillis + "ms");
+		return nextWindowMillis;
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.google.appengine.api.log.AppLogLine;
+import com.google.appengine.api.log.RequestLogs;
+
+/**
+ * Finds the patterns of all {@link AppLogsFieldExporter}s of an export in
+ * the app log lines of a request, so that exporters don't each scan every
+ * line with their own regexes.
+ *
+ * Exporters add their patterns from
+ * {@link AppLogsFieldExporter#registerAppLogPatterns(AppLogExtractor) registerAppLogPatterns}
+ * and keep the returned {@link Match}es. The lines of a request are only
+ * scanned once one of its matches is asked for, and then only once for all
+ * patterns: the patterns are combined into one regex, and only the lines it
+ * finds are matched against the individual patterns. A request whose matches
+ * are never asked for isn't scanned at all.
+ *
+ * App logs are fetched from the LogService unless every exporter of the
+ * export is an AppLogsFieldExporter that neither adds a pattern nor calls
+ * {@link #requireAppLogLines()}.
+ *
+ * Every thread of an export has its own extractor, which isn't thread safe.
+ */
+public class AppLogExtractor {
+	private static final Logger log = Logger.getLogger("bqlogging");
+	
+	private final List<Match> matches = new ArrayList<>();
+	private boolean appLogLinesRequired;
+	
+	private boolean compiled;
+	// Null if the patterns can't be combined, then every line is matched against every pattern
+	private Matcher combined;
+	private RequestLogs scannedLog;
+
+	/**
+	 * The first line of a request that matches a pattern, valid until a match of another request is asked for.
+	 */
+	public class Match {
+		private final Pattern pattern;
+		private final Matcher matcher;
+		private AppLogLine line;
+		private String[] groups;
+		private int lineCount;
+
+		private Match(Pattern pattern) {
+			this.pattern = pattern;
+			this.matcher = pattern.matcher("");
+			this.groups = new String[matcher.groupCount() + 1];
+		}
+
+		/**
+		 * Scan the app log lines of the request, unless they were scanned already.
+		 *
+		 * @return whether any line of the request matches the pattern
+		 */
+		public boolean find(RequestLogs log) {
+			scan(log);
+			return line != null;
+		}
+
+		/**
+		 * @return the first matching line, or null if {@link #find} returned false
+		 */
+		public AppLogLine getLine() {
+			return line;
+		}
+
+		/**
+		 * @return the given capturing group of the first match in the first matching line, or null if it didn't participate
+		 */
+		public String group(int group) {
+			return groups[group];
+		}
+
+		/**
+		 * @return the number of lines of the request that match the pattern
+		 */
+		public int getLineCount() {
+			return lineCount;
+		}
+
+		public String getPattern() {
+			return pattern.pattern();
+		}
+
+		private void reset() {
+			line = null;
+			lineCount = 0;
+			for (int i = 0; i < groups.length; i++) {
+				groups[i] = null;
+			}
+		}
+
+		private void matchLine(AppLogLine appLogLine, String message) {
+			matcher.reset(message);
+			if (!matcher.find()) {
+				return;
+			}
+			if (lineCount++ == 0) {
+				line = appLogLine;
+				for (int i = 0; i < groups.length; i++) {
+					groups[i] = matcher.group(i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add a pattern to find anywhere in a line. Numbered back references aren't supported,
+	 * as the pattern is combined with the patterns of other exporters; use named groups instead.
+	 *
+	 * @param regex a {@link Pattern} regular expression
+	 * @return the match to ask for the lines of each request
+	 */
+	public Match addPattern(String regex) {
+		return add(Pattern.compile(regex));
+	}
+
+	/**
+	 * Add a literal prefix of a line.
+	 *
+	 * @return the match to ask for the lines of each request
+	 */
+	public Match addPrefix(String prefix) {
+		return add(Pattern.compile("^" + Pattern.quote(prefix)));
+	}
+
+	private Match add(Pattern pattern) {
+		if (compiled) {
+			throw new IllegalStateException("Patterns must be added from registerAppLogPatterns");
+		}
+		Match match = new Match(pattern);
+		matches.add(match);
+		return match;
+	}
+
+	/**
+	 * Fetch app log lines for an exporter that reads {@link RequestLogs#getAppLogLines()} itself.
+	 */
+	public void requireAppLogLines() {
+		appLogLinesRequired = true;
+	}
+
+	/**
+	 * @return whether app log lines need to be fetched with the requests
+	 */
+	public boolean isAppLogsNeeded() {
+		return appLogLinesRequired || !matches.isEmpty();
+	}
+
+	/**
+	 * Combine the patterns of all exporters, called once they have all been registered.
+	 */
+	public void compile() {
+		compiled = true;
+		if (matches.isEmpty()) {
+			return;
+		}
+		try {
+			combined = Pattern.compile(combine(false)).matcher("");
+		}
+		catch (PatternSyntaxException e) {
+			// Patterns of different exporters define the same group name
+			try {
+				combined = Pattern.compile(combine(true)).matcher("");
+			}
+			catch (PatternSyntaxException e2) {
+				log.warning("Couldn't combine app log patterns, matching them one by one: " + e2.getMessage());
+				combined = null;
+			}
+		}
+	}
+
+	private String combine(boolean scopeGroupNames) {
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < matches.size(); i++) {
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			String pattern = matches.get(i).pattern.pattern();
+			regex.append("(?:").append(scopeGroupNames ? scopeGroupNames(pattern, "m" + i + "x") : pattern).append(')');
+		}
+		return regex.toString();
+	}
+
+	/**
+	 * Prefix the names of the named groups of a pattern, and of its named back references, 
+	 * so that they don't clash with the groups of other patterns.
+	 */
+	private static String scopeGroupNames(String regex, String prefix) {
+		StringBuilder scoped = new StringBuilder(regex.length() + 16);
+		int classDepth = 0;
+		for (int i = 0; i < regex.length(); i++) {
+			char c = regex.charAt(i);
+			if (c == '\\' && i + 1 < regex.length()) {
+				char next = regex.charAt(i + 1);
+				if (next == 'Q') {
+					// Quoted up to \E, e.g. from addPrefix
+					int end = regex.indexOf("\\E", i + 2);
+					end = end < 0 ? regex.length() : end + 2;
+					scoped.append(regex, i, end);
+					i = end - 1;
+				}
+				else if (next == 'k' && classDepth == 0 && regex.startsWith("<", i + 2)) {
+					scoped.append("\\k<").append(prefix);
+					i += 2;
+				}
+				else {
+					scoped.append(c).append(next);
+					i++;
+				}
+				continue;
+			}
+			if (c == '[') {
+				classDepth++;
+			}
+			else if (c == ']' && classDepth > 0) {
+				classDepth--;
+			}
+			else if (c == '(' && classDepth == 0 && regex.startsWith("?<", i + 1) 
+					&& i + 3 < regex.length() && Character.isLetter(regex.charAt(i + 3))) {
+				scoped.append("(?<").append(prefix);
+				i += 2;
+				continue;
+			}
+			scoped.append(c);
+		}
+		return scoped.toString();
+	}
+
+	private void scan(RequestLogs log) {
+		if (log == scannedLog) {
+			return;
+		}
+		if (!compiled) {
+			throw new IllegalStateException("AppLogExtractor used before compile()");
+		}
+		scannedLog = log;
+		for (Match match : matches) {
+			match.reset();
+		}
+		
+		List<AppLogLine> lines = log.getAppLogLines();
+		if (lines == null) {
+			return;
+		}
+		for (AppLogLine appLogLine : lines) {
+			String message = appLogLine.getLogMessage();
+			if (message == null) {
+				continue;
+			}
+			// Most lines match no pattern and are only scanned by the combined regex
+			if (combined != null) {
+				combined.reset(message);
+				if (!combined.find()) {
+					continue;
+				}
+			}
+			for (Match match : matches) {
+				match.matchLine(appLogLine, message);
+			}
+		}
+	}
+}
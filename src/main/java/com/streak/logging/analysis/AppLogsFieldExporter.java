@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * An exporter that declares which app log lines of a request it reads. App
+ * log lines are only left out of the LogService queries when every exporter
+ * of the export implements this interface and none of them needs them.
+ * Exporters that don't implement it are assumed to read
+ * {@link com.google.appengine.api.log.RequestLogs#getAppLogLines() getAppLogLines}.
+ */
+public interface AppLogsFieldExporter extends LogsFieldExporter {
+
+	/**
+	 * Called before the exporter's first log with the extractor of the thread
+	 * the exporter runs on. Add the patterns the exporter looks for and keep
+	 * the returned matches, or call
+	 * {@link AppLogExtractor#requireAppLogLines() requireAppLogLines} if the
+	 * exporter reads {@link com.google.appengine.api.log.RequestLogs#getAppLogLines() getAppLogLines}
+	 * itself. Register nothing if the exporter doesn't read app log lines.
+	 *
+	 * @param extractor the extractor shared by the exporters of the thread
+	 */
+	public void registerAppLogPatterns(AppLogExtractor extractor);
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * Decides when a batch of rows is sent to BigQuery in a single insertAll request.
+ *
+ * A batch is sent before adding a row would make the request body larger
+ * than maxBytes, when it holds maxRows rows, or when its first row was added
+ * more than maxLingerMillis ago. Sizes are the exact encoded size of the
+ * request body.
+ *
+ * With gzip, request bodies are compressed before they are sent. Log rows
+ * usually compress 5 to 10 times, which saves outbound bandwidth for some
+ * CPU time. Sizes are still those of the uncompressed body.
+ */
+public class BatchPolicy {
+	/**
+	 * BigQuery rejects streaming requests larger than 10MB, stay well under it.
+	 */
+	public static final int DEFAULT_MAX_BYTES = 5 * 1000 * 1000;
+
+	/**
+	 * The maximum number of rows BigQuery accepts in one insertAll request.
+	 */
+	public static final int DEFAULT_MAX_ROWS = 10000;
+
+	/**
+	 * Send partial batches when reading logs is slow, so uploads overlap with reading.
+	 */
+	public static final long DEFAULT_MAX_LINGER_MILLIS = 10000;
+
+	public static final BatchPolicy DEFAULT = new BatchPolicy(DEFAULT_MAX_BYTES, DEFAULT_MAX_ROWS, DEFAULT_MAX_LINGER_MILLIS);
+
+	private final int maxBytes;
+	private final int maxRows;
+	private final long maxLingerMillis;
+	private final boolean gzip;
+
+	/**
+	 * @param maxBytes the maximum size of an insertAll request body
+	 * @param maxRows the maximum number of rows in an insertAll request
+	 * @param maxLingerMillis the maximum time a batch waits for more rows, 0 to only send full batches
+	 */
+	public BatchPolicy(int maxBytes, int maxRows, long maxLingerMillis) {
+		this(maxBytes, maxRows, maxLingerMillis, false);
+	}
+
+	/**
+	 * @param maxBytes the maximum size of an insertAll request body, before it is compressed
+	 * @param maxRows the maximum number of rows in an insertAll request
+	 * @param maxLingerMillis the maximum time a batch waits for more rows, 0 to only send full batches
+	 * @param gzip whether request bodies are sent gzip encoded
+	 */
+	public BatchPolicy(int maxBytes, int maxRows, long maxLingerMillis, boolean gzip) {
+		if (maxBytes < 1 || maxRows < 1 || maxLingerMillis < 0) {
+			throw new IllegalArgumentException("Invalid batch policy: maxBytes=" + maxBytes + ", maxRows=" + maxRows + ", maxLingerMillis=" + maxLingerMillis);
+		}
+		this.maxBytes = maxBytes;
+		this.maxRows = maxRows;
+		this.maxLingerMillis = maxLingerMillis;
+		this.gzip = gzip;
+	}
+
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+	public int getMaxRows() {
+		return maxRows;
+	}
+
+	public long getMaxLingerMillis() {
+		return maxLingerMillis;
+	}
+
+	public boolean isGzip() {
+		return gzip;
+	}
+
+	/**
+	 * @param batchBytes the exact size of the batch with the next row added
+	 * @param batchRows the number of rows already in the batch
+	 * @return whether the batch has to be sent before the next row is added
+	 */
+	public boolean isFull(int batchBytes, int batchRows) {
+		return batchRows > 0 && (batchBytes > maxBytes || batchRows >= maxRows);
+	}
+
+	/**
+	 * @param batchStartMillis when the first row was added to the batch
+	 * @param nowMillis the current time
+	 * @return whether the batch has waited long enough to be sent even though it isn't full
+	 */
+	public boolean hasLingered(long batchStartMillis, long nowMillis) {
+		return maxLingerMillis > 0 && nowMillis - batchStartMillis >= maxLingerMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchPolicy[maxBytes=" + maxBytes + ", maxRows=" + maxRows + ", maxLingerMillis=" + maxLingerMillis + ", gzip=" + gzip + "]";
+	}
+}
@@ -23,11 +23,6 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import com.google.api.client.googleapis.extensions.appengine.auth.oauth2.AppIdentityCredential;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson.JacksonFactory;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.Bigquery.Jobs.Get;
 import com.google.api.services.bigquery.model.Job;
@@ -37,19 +32,17 @@ import com.google.api.services.bigquery.model.ProjectList;
 import com.google.api.services.bigquery.model.ProjectList.Projects;
 import com.google.gson.Gson;
 import com.streak.logging.utils.AnalysisConstants;
+import com.streak.logging.utils.AnalysisUtility;
 
 /**
  * Diagnostic servlet that lists visible BigQuery projects and jobs.
  */
 @SuppressWarnings("serial")
 public class BigqueryStatusServlet extends HttpServlet {
-	private static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
-	private static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
 	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
 		resp.setContentType("application/json");
-		AppIdentityCredential credential = new AppIdentityCredential(AnalysisConstants.SCOPES);
-		Bigquery bigquery = new Bigquery.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential).setApplicationName("Streak Logs").build();
+		Bigquery bigquery = AnalysisUtility.getDefaultBigquery();
 
 		String jobId = req.getParameter(AnalysisConstants.JOB_ID_PARAM);
 		Object retVal = null;
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.io.IOException;
+import java.util.List;
+
+import com.google.api.services.bigquery.model.ErrorProto;
+
+/**
+ * Receives rows that BigQuery rejected and that won't be retried, either
+ * because their errors aren't transient or because the retries ran out.
+ * Implementations can store the rows somewhere to be fixed and reloaded.
+ * 
+ * Rows are handed over from the thread that sent them, which may be one of
+ * several upload threads, so implementations must be thread safe.
+ */
+public interface DeadLetterSink {
+	/**
+	 * @param insertId the insert id the row was sent with, may be null
+	 * @param rowJson the row as a JSON object
+	 * @param errors the errors BigQuery returned for the row
+	 */
+	public void rejectedRow(String projectId, String datasetId, String tableId, String insertId, String rowJson, List<ErrorProto> errors) throws IOException;
+}
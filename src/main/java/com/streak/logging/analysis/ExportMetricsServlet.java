@@ -0,0 +1,47 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.streak.logging.utils.MetricsRegistry;
+
+/**
+ * Diagnostic servlet that shows the export metrics of the instance serving the request,
+ * as JSON or, with format=prometheus, in the Prometheus text format.
+ */
+@SuppressWarnings("serial")
+public class ExportMetricsServlet extends HttpServlet {
+	private static final String FORMAT_PARAM = "format";
+	private static final String PROMETHEUS_FORMAT = "prometheus";
+
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setCharacterEncoding("UTF-8");
+		if (PROMETHEUS_FORMAT.equals(req.getParameter(FORMAT_PARAM))) {
+			resp.setContentType("text/plain; version=0.0.4");
+			MetricsRegistry.getDefault().writePrometheus(resp.getWriter());
+		}
+		else {
+			resp.setContentType("application/json");
+			MetricsRegistry.getDefault().writeJson(resp.getWriter());
+		}
+	}
+}
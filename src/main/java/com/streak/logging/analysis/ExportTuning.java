@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * Reads the options of a {@link TunableLogsExportConfiguration}, or null, which
+ * means the default, for a plain LogsExportConfiguration.
+ */
+final class ExportTuning {
+	private ExportTuning() {
+	}
+
+	private static TunableLogsExportConfiguration tunable(LogsExportConfiguration config) {
+		return config instanceof TunableLogsExportConfiguration ? (TunableLogsExportConfiguration) config : null;
+	}
+
+	static Integer getMaxConcurrentInserts(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getMaxConcurrentInserts();
+	}
+
+	static BatchPolicy getBatchPolicy(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getBatchPolicy();
+	}
+
+	static ShardingPolicy getShardingPolicy(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getShardingPolicy();
+	}
+
+	static RetryPolicy getRetryPolicy(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getRetryPolicy();
+	}
+
+	static DeadLetterSink getDeadLetterSink(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getDeadLetterSink();
+	}
+
+	static String getPullQueueName(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getPullQueueName();
+	}
+
+	static AdaptiveWindowPolicy getAdaptiveWindowPolicy(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getAdaptiveWindowPolicy();
+	}
+
+	static TablePartitioning getTablePartitioning(LogsExportConfiguration config) {
+		TunableLogsExportConfiguration tunable = tunable(config);
+		return tunable == null ? null : tunable.getTablePartitioning();
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.streak.logging.utils.ExporterProfile;
+
+/**
+ * Diagnostic servlet that lists the cost of each exporter in the profiled exports
+ * run by the instance serving the request, the most expensive first. With reset=true
+ * the totals are cleared after they are shown.
+ */
+@SuppressWarnings("serial")
+public class ExporterProfileServlet extends HttpServlet {
+	private static final String RESET_PARAM = "reset";
+
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json");
+		
+		List<Map<String, Object>> retVal = new ArrayList<Map<String, Object>>();
+		for (ExporterProfile profile : ExporterProfile.getInstanceProfiles()) {
+			long rows = Math.max(1, profile.getRows());
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("exporter", profile.getExporterName());
+			entry.put("rows", profile.getRows());
+			entry.put("totalMs", profile.getTotalNanos() / 1000000);
+			entry.put("processLogNsPerRow", profile.getProcessLogNanos() / rows);
+			entry.put("getFieldNsPerRow", profile.getGetFieldNanos() / rows);
+			entry.put("allocatedBytesPerRow", profile.getAllocatedBytes() / rows);
+			retVal.add(entry);
+		}
+		
+		if ("true".equals(req.getParameter(RESET_PARAM))) {
+			ExporterProfile.resetInstanceProfiles();
+		}
+		resp.getWriter().println(new Gson().toJson(retVal));
+	}
+}
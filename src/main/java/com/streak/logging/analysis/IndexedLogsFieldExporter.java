@@ -0,0 +1,43 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import com.google.appengine.api.log.RequestLogs;
+
+/**
+ * A LogsFieldExporter that writes its fields by index instead of answering
+ * {@link #getField(String) getField} calls by name.
+ *
+ * The export task calls {@link #writeFields(RequestLogs, RowSink) writeFields}
+ * once per log entry instead of {@link #processLog(RequestLogs) processLog}
+ * followed by getField, so values are not boxed and no field name
+ * comparisons are needed. The schema methods are used as before.
+ *
+ * Plain LogsFieldExporters keep working, they are wrapped in a
+ * {@link LogsFieldExporterAdapter}.
+ */
+public interface IndexedLogsFieldExporter extends LogsFieldExporter {
+
+	/**
+	 * Write every field of this exporter for the given log entry to the sink,
+	 * using the same indexes as {@link #getFieldName(int) getFieldName}.
+	 *
+	 * @param log entry to be processed
+	 * @param sink receives the field values
+	 */
+	public void writeFields(RequestLogs log, RowSink sink);
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.streak.logging.utils.AnalysisConstants;
+import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.BackfillProgress;
+
+/**
+ * Starts exporting a past range of logs and reports the progress of the
+ * backfill. Calling it again with the same range and configuration
+ * reports the progress of the running backfill instead of starting another,
+ * until that backfill is done.
+ */
+@SuppressWarnings("serial")
+public class LogExportBackfillStart extends HttpServlet {
+	private static final int DEFAULT_MAX_CONCURRENT_WINDOWS = 10;
+	
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json");
+		
+		String backfillId = req.getParameter(AnalysisConstants.BACKFILL_ID_PARAM);
+		if (AnalysisUtility.areParametersValid(backfillId)) {
+			BackfillProgress progress = LogExportBackfillTask.getProgress(backfillId);
+			if (progress == null) {
+				resp.getWriter().write(AnalysisUtility.failureJson("No backfill with id " + backfillId));
+				resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			resp.getWriter().write(progress.toJson());
+			return;
+		}
+		
+		String configClassName = req.getParameter(AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM);
+		String startMs = req.getParameter(AnalysisConstants.START_MS_PARAM);
+		String endMs = req.getParameter(AnalysisConstants.END_MS_PARAM);
+		String rowsPerSecond = req.getParameter(AnalysisConstants.ROWS_PER_SECOND_PARAM);
+		if (!AnalysisUtility.areParametersValid(configClassName, startMs, endMs, rowsPerSecond)) {
+			resp.getWriter().write(AnalysisUtility.failureJson("Missing required params: " + AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM 
+					+ ", " + AnalysisConstants.START_MS_PARAM + ", " + AnalysisConstants.END_MS_PARAM + ", " + AnalysisConstants.ROWS_PER_SECOND_PARAM));
+			resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		int maxConcurrentWindows = DEFAULT_MAX_CONCURRENT_WINDOWS;
+		if (AnalysisUtility.areParametersValid(req.getParameter(AnalysisConstants.MAX_CONCURRENT_WINDOWS_PARAM))) {
+			maxConcurrentWindows = Integer.parseInt(req.getParameter(AnalysisConstants.MAX_CONCURRENT_WINDOWS_PARAM));
+		}
+		
+		BackfillProgress progress = LogExportBackfillTask.startBackfill(configClassName, Long.parseLong(startMs), Long.parseLong(endMs), 
+				Long.parseLong(rowsPerSecond), maxConcurrentWindows);
+		resp.getWriter().write(progress.toJson());
+	}
+}
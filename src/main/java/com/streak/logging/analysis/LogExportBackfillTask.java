@@ -0,0 +1,208 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.io.IOException;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TaskOptions.Method;
+import com.streak.logging.utils.AnalysisConstants;
+import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.BackfillProgress;
+import com.streak.logging.utils.ExportCheckpoint;
+
+/**
+ * Drives a backfill: every STEP_MILLIS it checks which of the windows it
+ * enqueued have been exported and enqueues the next windows, then enqueues
+ * itself for the next step until every window is exported.
+ *
+ * The number of windows per step is chosen so the windows exported in a
+ * step add up to about rowsPerSecond rows per second, based on the average
+ * row count of the windows exported so far. Until the first window is
+ * exported it enqueues one window at a time. At most maxConcurrentWindows
+ * are in flight, windows that don't report back within WINDOW_TIMEOUT_MILLIS
+ * stop counting against that limit. Rows of shard tasks aren't counted.
+ *
+ * Window tasks are named after the backfill, so they don't collide with
+ * cron's tasks for the same windows, or with the tombstones of those tasks.
+ * A window whose task already exists was enqueued by an earlier attempt of
+ * the same step; it is counted as skipped rather than waited for.
+ */
+@SuppressWarnings("serial")
+public class LogExportBackfillTask extends HttpServlet {
+	private static final String TASK_URL = "/bqlogging/logExportBackfillTask";
+	private static final Logger log = Logger.getLogger("bqlogging");
+
+	private static final long STEP_MILLIS = 30000;
+	private static final long WINDOW_TIMEOUT_MILLIS = 30 * 60 * 1000;
+
+	/**
+	 * Start backfilling a range, unless it is already being backfilled. A backfill of the range that is done 
+	 * is replaced by a new one.
+	 * 
+	 * @return the progress of the new or running backfill
+	 */
+	public static BackfillProgress startBackfill(String logsExporterConfigurationClassName, long startMs, long endMs, 
+			long rowsPerSecond, int maxConcurrentWindows) {
+		LogsExportConfiguration config = AnalysisUtility.instantiateLogExporterConfig(logsExporterConfigurationClassName);
+		BackfillProgress progress = new BackfillProgress(logsExporterConfigurationClassName, startMs, endMs, 
+				config.getMillisPerExport(), rowsPerSecond, maxConcurrentWindows);
+		
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Transaction txn = datastore.beginTransaction();
+		try {
+			BackfillProgress existing = BackfillProgress.load(datastore, txn, progress.getId());
+			if (existing != null && !existing.isDone()) {
+				return existing;
+			}
+			progress.save(datastore, txn);
+			txn.commit();
+		}
+		finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		enqueueStep(config, progress, 0);
+		return progress;
+	}
+
+	/**
+	 * @return the progress of a backfill, or null if there is none with the id
+	 */
+	public static BackfillProgress getProgress(String backfillId) {
+		return BackfillProgress.load(DatastoreServiceFactory.getDatastoreService(), null, backfillId);
+	}
+
+	private static void enqueueStep(LogsExportConfiguration config, BackfillProgress progress, long countdownMillis) {
+		Queue queue;
+		if (!AnalysisUtility.areParametersValid(config.getQueueName())) {
+			queue = QueueFactory.getDefaultQueue();
+		}
+		else {
+			queue = QueueFactory.getQueue(config.getQueueName());
+		}
+		
+		TaskOptions t = TaskOptions.Builder.withUrl(TASK_URL);
+		t.param(AnalysisConstants.BACKFILL_ID_PARAM, progress.getId());
+		t.param(AnalysisConstants.BACKFILL_STEP_PARAM, Integer.toString(progress.getStep()));
+		t.method(Method.GET);
+		t.countdownMillis(countdownMillis);
+		// Named after the backfill's creation too, a new backfill of the range starts at step 0 again
+		t.taskName(progress.getTaskNamePrefix() + LogExportBackfillTask.class.getSimpleName() + "_" + progress.getStep());
+		try {
+			queue.add(t);
+		}
+		catch (TaskAlreadyExistsException te) {
+			// a previous attempt of this step already enqueued the next one
+		}
+	}
+
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json");
+		
+		String backfillId = req.getParameter(AnalysisConstants.BACKFILL_ID_PARAM);
+		int step = Integer.parseInt(req.getParameter(AnalysisConstants.BACKFILL_STEP_PARAM));
+		
+		DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+		Transaction txn = datastore.beginTransaction();
+		BackfillProgress progress;
+		LogsExportConfiguration config;
+		try {
+			progress = BackfillProgress.load(datastore, txn, backfillId);
+			if (progress == null || progress.getStep() != step) {
+				// Deleted, or a duplicate of a step that already ran
+				resp.getWriter().write(AnalysisUtility.successJson("Nothing to do for " + backfillId + " step " + step));
+				return;
+			}
+			config = AnalysisUtility.instantiateLogExporterConfig(progress.getConfigClassName());
+			
+			long now = System.currentTimeMillis();
+			Map<String, ExportCheckpoint.Exported> exported = ExportCheckpoint.getExported(progress.getInFlightTaskNames());
+			progress.windowsFinished(exported, now - WINDOW_TIMEOUT_MILLIS);
+			
+			int windows = getWindowsForStep(progress);
+			for (int i = 0; i < windows; i++) {
+				// Spread the windows over the step so the export rate is even
+				long etaMillis = now + i * STEP_MILLIS / windows;
+				String taskNamePrefix = progress.getTaskNamePrefix();
+				long windowStartMs = progress.getNextWindowStartMs();
+				long windowEndMs = progress.getNextWindowEndMs();
+				if (LogExportDirectToBigqueryTask.enqueueWindowTask(progress.getConfigClassName(), config, 
+						windowStartMs, windowEndMs, etaMillis, false, taskNamePrefix)) {
+					progress.windowEnqueued(LogExportDirectToBigqueryTask.getTaskName(taskNamePrefix, windowStartMs, windowEndMs), etaMillis);
+				}
+				else {
+					progress.windowSkipped();
+				}
+			}
+			
+			progress.nextStep();
+			progress.save(datastore, txn);
+			txn.commit();
+		}
+		catch (ConcurrentModificationException e) {
+			// Retry the step, the windows it enqueued are kept by their task names
+			resp.setStatus(503);
+			return;
+		}
+		finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		
+		if (progress.isDone()) {
+			log.warning("Backfill " + backfillId + " done: " + progress.toJson());
+		}
+		else {
+			enqueueStep(config, progress, STEP_MILLIS);
+		}
+		resp.getWriter().write(progress.toJson());
+	}
+
+	/**
+	 * @return the number of windows to enqueue for the next step
+	 */
+	private static int getWindowsForStep(BackfillProgress progress) {
+		int freeSlots = progress.getFreeWindowSlots();
+		Long averageRows = progress.getAverageRowsPerWindow();
+		int windows;
+		if (averageRows == null) {
+			// Export one window to learn how big windows are
+			windows = progress.getInFlightTaskNames().isEmpty() ? 1 : 0;
+		}
+		else {
+			long rowsPerStep = progress.getRowsPerSecond() * STEP_MILLIS / 1000;
+			windows = (int) Math.max(1, Math.min(Integer.MAX_VALUE, rowsPerStep / Math.max(1, averageRows)));
+		}
+		return Math.max(0, Math.min(windows, freeSlots));
+	}
+}
@@ -24,13 +24,15 @@ import javax.servlet.http.HttpServletResponse;
 
 import com.streak.logging.utils.AnalysisConstants;
 import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.TaskBatchEnqueuer;
 
 @SuppressWarnings("serial")
 public class LogExportDirectToBigqueryStart extends HttpServlet {
 	
 	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {		
 		String configClassName = req.getParameter(AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM);
-		LogExportDirectToBigqueryTask.enqueueMultipleTasksForManyRanges(configClassName);
-		resp.getWriter().println(AnalysisUtility.successJson("Tasks enqueued"));
+		boolean profileExporters = "true".equals(req.getParameter(AnalysisConstants.PROFILE_EXPORTERS_PARAM));
+		TaskBatchEnqueuer.Result result = LogExportDirectToBigqueryTask.enqueueMultipleTasksForManyRanges(configClassName, profileExporters);
+		resp.getWriter().println(AnalysisUtility.successJson("Tasks enqueued: " + result));
 	}
 }
@@ -17,9 +17,9 @@
 package com.streak.logging.analysis;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -28,9 +28,8 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.json.JSONException;
-
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.bigquery.Bigquery;
 import com.google.appengine.api.log.LogQuery;
 import com.google.appengine.api.log.LogQuery.Version;
 import com.google.appengine.api.log.LogService;
@@ -45,55 +44,159 @@ import com.google.appengine.api.taskqueue.TaskOptions.Method;
 import com.streak.logging.utils.AnalysisConstants;
 import com.streak.logging.utils.AnalysisUtility;
 import com.streak.logging.utils.BigqueryIngester;
-import com.streak.logging.utils.InvalidFieldException;
+import com.streak.logging.utils.BigqueryTableCache;
+import com.streak.logging.utils.ExportCheckpoint;
+import com.streak.logging.utils.ExportMetrics;
+import com.streak.logging.utils.ExporterProfile;
+import com.streak.logging.utils.InsertAllBatch;
+import com.streak.logging.utils.RowPlan;
+import com.streak.logging.utils.RowReader;
+import com.streak.logging.utils.StreamingInsertPipeline;
+import com.streak.logging.utils.TaskBatchEnqueuer;
 
 
 @SuppressWarnings("serial")
 public class LogExportDirectToBigqueryTask extends HttpServlet {
 
 	private static final String TASK_URL = "/bqlogging/logExportDirectToBigqueryTask";
+	private static final String TASK_NAME_HEADER = "X-AppEngine-TaskName";
 	private static final Logger log = Logger.getLogger("bqlogging");
-	private long MAX_BYTES_PER_POST = 1 * 1000 * 1000; // not exactly a megabyte, leave some buffer
 	
-	public static void enqueueMultipleTasksForManyRanges(String logsExporterConfigurationClassName) {
+	public static TaskBatchEnqueuer.Result enqueueMultipleTasksForManyRanges(String logsExporterConfigurationClassName) {
+		return enqueueMultipleTasksForManyRanges(logsExporterConfigurationClassName, false);
+	}
+	
+	/**
+	 * @param profileExporters whether the tasks log and record the cost of each exporter
+	 * @return how many of the windows' tasks were new and how many had already been enqueued by an earlier run
+	 */
+	public static TaskBatchEnqueuer.Result enqueueMultipleTasksForManyRanges(String logsExporterConfigurationClassName, boolean profileExporters) {
 		LogsExportConfiguration config = AnalysisUtility.instantiateLogExporterConfig(logsExporterConfigurationClassName);
+		if (ExportTuning.getAdaptiveWindowPolicy(config) != null) {
+			return AdaptiveWindowScheduler.enqueueWindows(logsExporterConfigurationClassName, config, profileExporters);
+		}
 		
 		long now = System.currentTimeMillis();
 		long logRangeEndMs = AnalysisUtility.round(now, config.getMillisPerExport());
 		long logRangeStartMs = logRangeEndMs - config.getMillisPerExport();
 		
+		List<TaskOptions> tasks = new ArrayList<>();
 		for (int i = 0; i < AnalysisConstants.NUM_TASKS_TO_GENERATE_PER_ENQUEUE; i++) {
-			
-			Queue queue;
-			if (!AnalysisUtility.areParametersValid(config.getQueueName())) {
-				queue = QueueFactory.getDefaultQueue();
-			}
-			else {
-				queue = QueueFactory.getQueue(config.getQueueName());
-			}
-			TaskOptions t = TaskOptions.Builder.withUrl(TASK_URL);
-			
-			t.param(AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM, logsExporterConfigurationClassName);
-			t.param(AnalysisConstants.LOG_RANGE_START_MS, Long.toString(logRangeStartMs));
-			t.param(AnalysisConstants.LOG_RANGE_END_MS, Long.toString(logRangeEndMs));
+			TaskOptions t = createTaskOptions(logsExporterConfigurationClassName, config, logRangeStartMs, logRangeEndMs, profileExporters);
 			t.etaMillis(logRangeEndMs + AnalysisConstants.MILLIS_TO_DELAY_TASKS_BEFORE_RUNNING);
-			t.method(Method.GET);
-			
-			String name = LogExportDirectToBigqueryTask.class.getSimpleName() + "_" + Long.toString(logRangeStartMs) + "_" + Long.toString(logRangeEndMs);
-			log.warning("exportTaskName: " + name);
-			
-			t.taskName(name);
-			
-			try {
-				queue.addAsync(t);
-			}
-			catch (TaskAlreadyExistsException te) {
-				// we've already enqueued a task for this window, so don't worry about it
-			}
+			tasks.add(t);
 			
 			logRangeEndMs += config.getMillisPerExport();
 			logRangeStartMs += config.getMillisPerExport();
 		}
+		
+		// Most windows were already enqueued by the previous runs, their tasks are counted as duplicates
+		TaskBatchEnqueuer.Result result = TaskBatchEnqueuer.enqueue(getQueue(config), tasks);
+		log.info("Enqueued windows of " + logsExporterConfigurationClassName + ": " + result);
+		return result;
+	}
+	
+	/**
+	 * Enqueue tasks for consecutive slices of the given range, used when a task shards its window.
+	 * Tasks that a previous attempt of the task already enqueued the same way are left alone.
+	 * 
+	 * @param taskNamePrefix the prefix of the window's task name, which its shards keep, or null
+	 */
+	public static void enqueueShardTasks(String logsExporterConfigurationClassName, LogsExportConfiguration config, long rangeStartMs, long rangeEndMs, int shardCount,
+			boolean profileExporters, String taskNamePrefix) {
+		List<TaskOptions> tasks = new ArrayList<>();
+		long sliceMs = (rangeEndMs - rangeStartMs) / shardCount;
+		for (int i = 0; i < shardCount; i++) {
+			long shardStartMs = rangeStartMs + i * sliceMs;
+			long shardEndMs = i == shardCount - 1 ? rangeEndMs : shardStartMs + sliceMs;
+			tasks.add(createTaskOptions(logsExporterConfigurationClassName, config, shardStartMs, shardEndMs, profileExporters, taskNamePrefix));
+		}
+		TaskBatchEnqueuer.enqueue(getQueue(config), tasks);
+	}
+	
+	/**
+	 * Enqueue the task of a single window, e.g. for a backfill.
+	 * 
+	 * @param taskNamePrefix put before the window's task name, so that the task doesn't collide with cron's task for the window
+	 * @return whether the task was added, false if a task with its name already exists
+	 */
+	public static boolean enqueueWindowTask(String logsExporterConfigurationClassName, LogsExportConfiguration config, 
+			long logRangeStartMs, long logRangeEndMs, long etaMillis, boolean profileExporters, String taskNamePrefix) {
+		TaskOptions t = createTaskOptions(logsExporterConfigurationClassName, config, logRangeStartMs, logRangeEndMs, profileExporters, 
+				taskNamePrefix);
+		t.etaMillis(etaMillis);
+		try {
+			getQueue(config).add(t);
+			return true;
+		}
+		catch (TaskAlreadyExistsException te) {
+			return false;
+		}
+	}
+	
+	static Queue getQueue(LogsExportConfiguration config) {
+		if (AnalysisUtility.areParametersValid(ExportTuning.getPullQueueName(config))) {
+			return QueueFactory.getQueue(ExportTuning.getPullQueueName(config));
+		}
+		if (!AnalysisUtility.areParametersValid(config.getQueueName())) {
+			return QueueFactory.getDefaultQueue();
+		}
+		return QueueFactory.getQueue(config.getQueueName());
+	}
+	
+	static TaskOptions createTaskOptions(String logsExporterConfigurationClassName, LogsExportConfiguration config, 
+			long logRangeStartMs, long logRangeEndMs, boolean profileExporters) {
+		return createTaskOptions(logsExporterConfigurationClassName, config, logRangeStartMs, logRangeEndMs, profileExporters, null);
+	}
+	
+	static TaskOptions createTaskOptions(String logsExporterConfigurationClassName, LogsExportConfiguration config, 
+			long logRangeStartMs, long logRangeEndMs, boolean profileExporters, String taskNamePrefix) {
+		TaskOptions t;
+		if (AnalysisUtility.areParametersValid(ExportTuning.getPullQueueName(config))) {
+			// Leased by LogExportPullQueueWorker, which only leases the windows of its configuration
+			t = TaskOptions.Builder.withMethod(Method.PULL);
+			t.tag(logsExporterConfigurationClassName);
+		}
+		else {
+			t = TaskOptions.Builder.withUrl(TASK_URL);
+			t.method(Method.GET);
+		}
+		
+		t.param(AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM, logsExporterConfigurationClassName);
+		t.param(AnalysisConstants.LOG_RANGE_START_MS, Long.toString(logRangeStartMs));
+		t.param(AnalysisConstants.LOG_RANGE_END_MS, Long.toString(logRangeEndMs));
+		if (profileExporters) {
+			t.param(AnalysisConstants.PROFILE_EXPORTERS_PARAM, "true");
+		}
+		
+		String name = getTaskName(taskNamePrefix, logRangeStartMs, logRangeEndMs);
+		log.warning("exportTaskName: " + name);
+		
+		t.taskName(name);
+		return t;
+	}
+	
+	public static String getTaskName(long logRangeStartMs, long logRangeEndMs) {
+		return LogExportDirectToBigqueryTask.class.getSimpleName() + "_" + Long.toString(logRangeStartMs) + "_" + Long.toString(logRangeEndMs);
+	}
+	
+	/**
+	 * @param taskNamePrefix put before the name of the window's task, or null for cron's name
+	 */
+	public static String getTaskName(String taskNamePrefix, long logRangeStartMs, long logRangeEndMs) {
+		String name = getTaskName(logRangeStartMs, logRangeEndMs);
+		return taskNamePrefix == null ? name : taskNamePrefix + name;
+	}
+	
+	/**
+	 * @return the prefix a window's task name was given, or null if it has none
+	 */
+	private static String getTaskNamePrefix(String taskName, long logRangeStartMs, long logRangeEndMs) {
+		String name = getTaskName(logRangeStartMs, logRangeEndMs);
+		if (taskName == null || taskName.length() == name.length() || !taskName.endsWith(name)) {
+			return null;
+		}
+		return taskName.substring(0, taskName.length() - name.length());
 	}
 	
 	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -107,31 +210,92 @@ public class LogExportDirectToBigqueryTask extends HttpServlet {
 		
 		String logsExporterConfig = req.getParameter(AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM);
 		
-		LogsExportConfiguration exportConfig = AnalysisUtility.instantiateLogExporterConfig(logsExporterConfig);
-		LogsFieldExporterSet exporterSet = exportConfig.getExporterSet();
-				
-		List<LogsFieldExporter> exporters = exporterSet.getExporters();
+		RowPlan plan = RowPlan.forConfiguration(logsExporterConfig);
+		LogsExportConfiguration exportConfig = plan.getConfiguration();
 		
-		Iterable<RequestLogs> logs = null;
-		try {
-			logs = queryForLogs(logRangeStartMs, logRangeEndMs, exportConfig, exporterSet);
-		}
-		catch (LogServiceException e) {
-			// this task just needs to be retried, set a custom error code in case you want to alter how it shows up for reporting
-			setFailedTaskResponseCode(resp, exportConfig);
-			e.printStackTrace();
-			return;
+		List<List<IndexedLogsFieldExporter>> exportersPerThread = plan.newExportersPerThread();
+		boolean profileExporters = "true".equals(req.getParameter(AnalysisConstants.PROFILE_EXPORTERS_PARAM));
+		List<ExporterProfile> profiles = new ArrayList<>();
+		if (profileExporters) {
+			exportersPerThread = wrapForProfiling(plan, exportersPerThread, profiles);
 		}
 
 		try {
-			streamToBigquery(logRangeStartMs, logRangeEndMs, exportConfig, exporterSet, exporters, logs);
+			// Only set when running from the task queue, retries of the task resume from its checkpoint
+			exportWindow(logsExporterConfig, plan, logRangeStartMs, logRangeEndMs, exportersPerThread, req.getHeader(TASK_NAME_HEADER), profileExporters);
 		}
-		catch (GoogleJsonResponseException e) {
+		catch (LogServiceException | GoogleJsonResponseException e) {
 			// this task just needs to be retried, set a custom error code in case you want to alter how it shows up for reporting
 			setFailedTaskResponseCode(resp, exportConfig);
 			e.printStackTrace();
 			return;
 		}
+		finally {
+			if (profileExporters) {
+				reportProfiles(profiles);
+			}
+		}
+	}
+	
+	/**
+	 * @param profiles filled with one profile per exporter, shared by the threads
+	 * @return the exporters of each thread, wrapped to time them, exportersPerThread is left as it is
+	 */
+	static List<List<IndexedLogsFieldExporter>> wrapForProfiling(RowPlan plan, List<List<IndexedLogsFieldExporter>> exportersPerThread, 
+			List<ExporterProfile> profiles) {
+		List<String> exporterNames = new ArrayList<>();
+		for (int exporterIndex = 0; exporterIndex < plan.getExporterCount(); exporterIndex++) {
+			exporterNames.add(plan.getExporterName(exporterIndex));
+		}
+		List<List<IndexedLogsFieldExporter>> wrapped = new ArrayList<>();
+		wrapped.add(ProfilingLogsFieldExporter.wrapAll(exportersPerThread.get(0), exporterNames, profiles));
+		for (int i = 1; i < exportersPerThread.size(); i++) {
+			wrapped.add(ProfilingLogsFieldExporter.wrapAll(exportersPerThread.get(i), profiles));
+		}
+		return wrapped;
+	}
+	
+	/**
+	 * Log the profiles of a window and add them to the ones shown by {@link ExporterProfileServlet}.
+	 */
+	static void reportProfiles(List<ExporterProfile> profiles) {
+		log.warning(ExporterProfile.summarize(profiles));
+		ExporterProfile.addToInstanceProfiles(profiles);
+	}
+	
+	/**
+	 * Export the logs of a window, resuming from the task's checkpoint, and enqueue shard tasks for the 
+	 * rest of the window if it is too busy.
+	 * 
+	 * @param exportersPerThread the exporters to use, from {@link RowPlan#newExportersPerThread()}, they can be reused for the next window
+	 * @param taskName the name of the task exporting the window, or null when it doesn't run from a queue
+	 * @param profileExporters whether shard tasks profile their exporters
+	 * @throws LogServiceException if the logs couldn't be read, the window needs to be exported again
+	 */
+	public void exportWindow(String logsExporterConfig, RowPlan plan, long logRangeStartMs, long logRangeEndMs, 
+			List<List<IndexedLogsFieldExporter>> exportersPerThread, String taskName, boolean profileExporters) throws IOException {
+		LogsExportConfiguration exportConfig = plan.getConfiguration();
+		
+		ExportCheckpoint checkpoint = null;
+		if (taskName != null) {
+			checkpoint = ExportCheckpoint.load(taskName);
+			if (checkpoint != null) {
+				log.warning("Resuming from " + checkpoint);
+			}
+		}
+		
+		Iterable<RequestLogs> logs = queryForLogs(logRangeStartMs, logRangeEndMs, exportConfig, plan.getExporterSet(), 
+				checkpoint == null ? null : checkpoint.getOffset(), plan.isAppLogsNeeded());
+		
+		ShardingPolicy shardingPolicy = ExportTuning.getShardingPolicy(exportConfig);
+		long unexportedEndMs = streamToBigquery(logRangeStartMs, logRangeEndMs, exportConfig, plan, exportersPerThread, logs, 
+				shardingPolicy, taskName, checkpoint);
+		if (unexportedEndMs > logRangeStartMs) {
+			int shardCount = shardingPolicy.getShardCount(logRangeStartMs, unexportedEndMs);
+			log.warning("Sharding " + logRangeStartMs + " - " + unexportedEndMs + " into " + shardCount + " tasks");
+			enqueueShardTasks(logsExporterConfig, exportConfig, logRangeStartMs, unexportedEndMs, shardCount, profileExporters, 
+					getTaskNamePrefix(taskName, logRangeStartMs, logRangeEndMs));
+		}
 	}
 
 	public void setFailedTaskResponseCode(HttpServletResponse resp, LogsExportConfiguration exportConfig) {
@@ -142,84 +306,361 @@ public class LogExportDirectToBigqueryTask extends HttpServlet {
 		resp.setStatus(respCode);
 	}
 
-	public void streamToBigquery(long logRangeStartMs, long logRangeEndMs, LogsExportConfiguration exportConfig, LogsFieldExporterSet exporterSet,
-			List<LogsFieldExporter> exporters, Iterable<RequestLogs> logs) throws UnsupportedEncodingException, IOException, GoogleJsonResponseException {
-		List<Map<String, Object>> rows = new ArrayList<>();
-		List<String> insertIds = new ArrayList<>();
+	/**
+	 * Export the logs of a window. With a sharding policy, stop once the task has exported enough rows 
+	 * and the older part of the window is long enough to be split.
+	 * 
+	 * @param exportersPerThread one list of exporters for each thread transforming logs, see {@link RowPlan#getTransformParallelism()}
+	 * @param shardingPolicy when to stop and leave the rest of the window to shard tasks, or null to export every log
+	 * @param taskName the key to save checkpoints under after each batch is sent, or null to not save checkpoints
+	 * @param checkpoint where a previous attempt stopped, the logs must already start after its offset, or null
+	 * @return the end of the older part of the window that was not exported, or logRangeStartMs if every log was exported
+	 */
+	public long streamToBigquery(long logRangeStartMs, long logRangeEndMs, LogsExportConfiguration exportConfig, RowPlan plan,
+			List<List<IndexedLogsFieldExporter>> exportersPerThread, Iterable<RequestLogs> logs, ShardingPolicy shardingPolicy,
+			String taskName, ExportCheckpoint checkpoint) throws IOException, GoogleJsonResponseException {
+		long exportStartMillis = System.currentTimeMillis();
+		int resultsCount = checkpoint == null ? 0 : checkpoint.getRowCount();
+		long cutMs = checkpoint == null ? logRangeStartMs : checkpoint.getCutMs();
+		long unexportedEndMs = logRangeStartMs;
 		
-		int resultsCount = 0;
-		long singleExportBytes = 2;
+		String tableId = exportConfig.getBigqueryTableId(logRangeStartMs, logRangeEndMs);
+		Bigquery bigquery = exportConfig.getBigquery();
 		
-		for (RequestLogs log : logs) {
-			
-			Map<String, Object> row = new HashMap<>();
-			if (exporterSet.skipLog(log)) {
-				continue;
-			}
+		BatchPolicy batchPolicy = ExportTuning.getBatchPolicy(exportConfig);
+		if (batchPolicy == null) {
+			batchPolicy = BatchPolicy.DEFAULT;
+		}
+		
+		RetryPolicy retryPolicy = ExportTuning.getRetryPolicy(exportConfig);
+		if (retryPolicy == null) {
+			retryPolicy = RetryPolicy.DEFAULT;
+		}
+		DeadLetterSink deadLetterSink = ExportTuning.getDeadLetterSink(exportConfig);
+		
+		StreamingInsertPipeline pipeline = null;
+		Integer maxConcurrentInserts = ExportTuning.getMaxConcurrentInserts(exportConfig);
+		if (maxConcurrentInserts != null && maxConcurrentInserts > 1) {
+			pipeline = new StreamingInsertPipeline(maxConcurrentInserts, retryPolicy, deadLetterSink, batchPolicy.isGzip());
+		}
+		
+		BatchCheckpoints checkpoints = taskName == null ? null : new BatchCheckpoints(taskName, pipeline);
+		
+		RowReader rows = RowReader.open(plan, exportersPerThread, logs);
+		if (cutMs > logRangeStartMs) {
+			rows.stopBefore(cutMs);
+		}
+		int exportedBefore = resultsCount;
+		
+		RoutingLogsFieldExporterSet router = plan.getExporterSet() instanceof RoutingLogsFieldExporterSet 
+				? (RoutingLogsFieldExporterSet) plan.getExporterSet() : null;
+		TableBatches tables = new TableBatches(exportConfig, plan, bigquery, pipeline);
+		tables.get(tableId);
+		
+		try {
+			// The offset of the last log whose row was added to a batch
+			String lastOffset = checkpoint == null ? null : checkpoint.getOffset();
 			
-			for (LogsFieldExporter exporter : exporters) {
-				exporter.processLog(log);
+			while (rows.next()) {
+				RequestLogs log = rows.getLog();
+				// Logs are returned newest first, so once the window is cut the rest is older than the cut.
+				// Rows transformed in parallel may already be past the cut.
+				if (cutMs > logRangeStartMs && log.getEndTimeUsec() / 1000 < cutMs) {
+					unexportedEndMs = cutMs;
+					break;
+				}
 				
-				for (int fieldIndex = 0; fieldIndex < exporter.getFieldCount(); fieldIndex++) {					
-					String fieldName = exporter.getFieldName(fieldIndex);
-					String fieldType = exporter.getFieldType(fieldIndex);
-					Object fieldValue = exporter.getField(fieldName);
-					
-					if (fieldValue == null && !exporter.getFieldNullable(fieldIndex)) {
-						throw new InvalidFieldException(
-								"Exporter " + exporter.getClass().getCanonicalName() + 
-								" didn't return field for " + fieldName);
-					}
-					try {
-						AnalysisUtility.putJsonValueFormatted(row, fieldName, fieldValue, fieldType);
+				String destinationTableId = router == null ? null : router.getDestinationTableId(log, tableId);
+				TableBatch table = tables.get(destinationTableId == null ? tableId : destinationTableId, log.getEndTimeUsec() / 1000);
+				String insertId = log.getRequestId();
+				if (batchPolicy.isFull(table.batch.sizeWithRow(insertId, rows.getRow()), table.batch.getRowCount())) {
+					table.batch = insertBatch(table.batch, table.tableId, exportConfig, bigquery, pipeline, retryPolicy, deadLetterSink, batchPolicy.isGzip());
+					checkpoint(checkpoints, tables.getCheckpoint(lastOffset, resultsCount, cutMs));
+				}
+				if (table.batch.isEmpty()) {
+					table.started(System.currentTimeMillis(), lastOffset, resultsCount);
+				}
+				table.batch.addRow(insertId, rows.getRow());
+				resultsCount++;
+				lastOffset = log.getOffset();
+				
+				long now = System.currentTimeMillis();
+				for (TableBatch lingering : tables.getAll()) {
+					if (!lingering.batch.isEmpty() && batchPolicy.hasLingered(lingering.startMillis, now)) {
+						lingering.batch = insertBatch(lingering.batch, lingering.tableId, exportConfig, bigquery, pipeline, retryPolicy, deadLetterSink, 
+								batchPolicy.isGzip());
+						checkpoint(checkpoints, tables.getCheckpoint(lastOffset, resultsCount, cutMs));
 					}
-					catch (JSONException e) {
-						e.printStackTrace();
+				}
+				
+				if (resultsCount == 19 && AnalysisUtility.isDev()) {
+					break; // stupid dev server bug: https://code.google.com/p/googleappengine/issues/detail?id=8987
+				}
+				
+				if (shardingPolicy != null && cutMs == logRangeStartMs && resultsCount >= shardingPolicy.getMaxRowsPerTask()) {
+					// Finish the current millisecond so the cut falls between two LogQuery ranges
+					long logEndMs = log.getEndTimeUsec() / 1000;
+					if (shardingPolicy.getShardCount(logRangeStartMs, logEndMs) > 0) {
+						cutMs = logEndMs;
+						rows.stopBefore(cutMs);
 					}
 				}
 			}
-			long rowBytes = row.toString().getBytes("UTF-8").length + 1; // Assumes a comma for every array item but w/e, conservative is fine
-			
-			
-			if (singleExportBytes + rowBytes > MAX_BYTES_PER_POST) {
-				BigqueryIngester.streamingRowIngestion(	rows, 
-														insertIds, 
-														exportConfig.getBigqueryTableId(logRangeStartMs, logRangeEndMs), 
-														exportConfig.getBigqueryDatasetId(), 
-														exportConfig.getBigqueryProjectId(),
-														exportConfig.getBigquery());
-				rows = new ArrayList<Map<String, Object>>();
-				insertIds = new ArrayList<>();
-				singleExportBytes = 0;
+			if (rows.isCutReached()) {
+				unexportedEndMs = cutMs;
 			}
 			
-			singleExportBytes += rowBytes;
-			rows.add(row);
-			insertIds.add(log.getRequestId());
-			
-			resultsCount++;
-			if (resultsCount == 19 && AnalysisUtility.isDev()) {
-				break; // stupid dev server bug: https://code.google.com/p/googleappengine/issues/detail?id=8987
+			// With a pipeline the last batches of all tables are sent in parallel
+			for (TableBatch table : tables.getAll()) {
+				if (!table.batch.isEmpty()) {
+					table.batch = insertBatch(table.batch, table.tableId, exportConfig, bigquery, pipeline, retryPolicy, deadLetterSink, batchPolicy.isGzip());
+				}
+			}
+			if (pipeline != null) {
+				pipeline.close();
+				pipeline = null;
 			}
 		}
-		
-		if (!rows.isEmpty()) {
-			BigqueryIngester.streamingRowIngestion(	rows, 
-													insertIds, 
-													exportConfig.getBigqueryTableId(logRangeStartMs, logRangeEndMs), 
-													exportConfig.getBigqueryDatasetId(), 
-													exportConfig.getBigqueryProjectId(),
-													exportConfig.getBigquery());
+		catch (GoogleJsonResponseException e) {
+			if (e.getStatusCode() == 404) {
+				// A table was deleted since it was checked, the retry creates it again
+				for (TableBatch table : tables.getAll()) {
+					BigqueryTableCache.invalidate(exportConfig.getBigqueryProjectId(), exportConfig.getBigqueryDatasetId(), table.tableId, plan);
+				}
+			}
+			throw e;
+		}
+		finally {
+			if (pipeline != null) {
+				pipeline.abort();
+			}
+			rows.close();
+			ExportMetrics.LOG_FETCH_MILLIS.observe(rows.getFetchNanos() / 1000000);
+			ExportMetrics.LOGS_READ.add(rows.getLogsRead());
+			ExportMetrics.ROWS_SKIPPED.add(rows.getLogsSkipped());
 		}
+		if (taskName != null) {
+			ExportCheckpoint.clear(taskName);
+			ExportCheckpoint.markExported(taskName, resultsCount, System.currentTimeMillis() - exportStartMillis);
+		}
+		ExportMetrics.ROWS_EXPORTED.add(resultsCount - exportedBefore);
+		ExportMetrics.EXPORT_LAG_MILLIS.observe(System.currentTimeMillis() - logRangeEndMs);
 		log.warning(resultsCount + " rows exported");
+		return unexportedEndMs;
 	}
 
-	public Iterable<RequestLogs> queryForLogs(long logRangeStartMs, long logRangeEndMs, LogsExportConfiguration exportConfig, LogsFieldExporterSet exporterSet) {
-		LogService ls = LogServiceFactory.getLogService();
+	private void checkpoint(BatchCheckpoints checkpoints, ExportCheckpoint checkpoint) throws IOException {
+		if (checkpoints != null) {
+			checkpoints.batchSubmitted(checkpoint);
+		}
+	}
+
+	/**
+	 * The batch being filled for one of the tables of a window.
+	 */
+	private static class TableBatch {
+		final String tableId;
+		InsertAllBatch batch;
+		long startMillis;
+		// Where a retry has to resume so as not to lose the rows of the batch
+		String offsetBefore;
+		int rowCountBefore;
+
+		TableBatch(String tableId, InsertAllBatch batch) {
+			this.tableId = tableId;
+			this.batch = batch;
+		}
+
+		void started(long startMillis, String offsetBefore, int rowCountBefore) {
+			this.startMillis = startMillis;
+			this.offsetBefore = offsetBefore;
+			this.rowCountBefore = rowCountBefore;
+		}
+	}
+
+	/**
+	 * The batches of the tables the rows of a window are sent to, created as rows are routed to them.
+	 * Tables partitioned by ingestion time have a batch per partition the rows fall in.
+	 */
+	private static class TableBatches {
+		private final LogsExportConfiguration exportConfig;
+		private final RowPlan plan;
+		private final Bigquery bigquery;
+		private final StreamingInsertPipeline pipeline;
+		private final TablePartitioning partitioning;
+		private final Map<String, TableBatch> byTableId = new HashMap<>();
+		private final List<TableBatch> all = new ArrayList<>();
+		
+		// The partition of the last row, so the decorator isn't formatted for every row
+		private final long decoratorsFromMs;
+		private long partitionStartMs = Long.MIN_VALUE;
+		private long partitionEndMs = Long.MIN_VALUE;
+		private String decorator;
+		private final Map<String, String> decoratedTableIds = new HashMap<>();
+		// Tables created before partitioning was configured get undecorated rows
+		private final Map<String, Boolean> partitionedTables = new HashMap<>();
+
+		TableBatches(LogsExportConfiguration exportConfig, RowPlan plan, Bigquery bigquery, StreamingInsertPipeline pipeline) {
+			this.exportConfig = exportConfig;
+			this.plan = plan;
+			this.bigquery = bigquery;
+			this.pipeline = pipeline;
+			TablePartitioning partitioning = ExportTuning.getTablePartitioning(exportConfig);
+			this.partitioning = partitioning != null && partitioning.usesDecorators() ? partitioning : null;
+			this.decoratorsFromMs = System.currentTimeMillis() - TablePartitioning.MAX_DECORATOR_AGE_MILLIS;
+		}
+
+		/**
+		 * @return the batch of the table or of its partition for the given time
+		 */
+		TableBatch get(String tableId, long timeMs) {
+			if (partitioning == null || timeMs < decoratorsFromMs || !isPartitioned(tableId)) {
+				return get(tableId);
+			}
+			if (timeMs < partitionStartMs || timeMs >= partitionEndMs) {
+				partitionStartMs = partitioning.getPartitionStartMs(timeMs);
+				partitionEndMs = partitionStartMs + TablePartitioning.DAY_MILLIS;
+				decorator = partitioning.getDecorator(partitionStartMs);
+				decoratedTableIds.clear();
+			}
+			String decoratedTableId = decoratedTableIds.get(tableId);
+			if (decoratedTableId == null) {
+				decoratedTableId = tableId + decorator;
+				decoratedTableIds.put(tableId, decoratedTableId);
+			}
+			return get(decoratedTableId);
+		}
+
+		private boolean isPartitioned(String tableId) {
+			Boolean partitioned = partitionedTables.get(tableId);
+			if (partitioned == null) {
+				partitioned = BigqueryTableCache.ensureTable(exportConfig.getBigqueryProjectId(), exportConfig.getBigqueryDatasetId(), tableId, 
+						plan, ExportTuning.getTablePartitioning(exportConfig), bigquery);
+				partitionedTables.put(tableId, partitioned);
+			}
+			return partitioned;
+		}
+
+		/**
+		 * @return the batch of the table, creating the table if it doesn't exist yet
+		 */
+		TableBatch get(String tableId) {
+			TableBatch table = byTableId.get(tableId);
+			if (table == null) {
+				BigqueryTableCache.ensureTable(exportConfig.getBigqueryProjectId(), exportConfig.getBigqueryDatasetId(), tableId, plan, 
+						ExportTuning.getTablePartitioning(exportConfig), bigquery);
+				table = new TableBatch(tableId, pipeline == null ? new InsertAllBatch() : pipeline.obtainBatch());
+				byTableId.put(tableId, table);
+				all.add(table);
+			}
+			return table;
+		}
+
+		List<TableBatch> getAll() {
+			return all;
+		}
+
+		/**
+		 * A batch was just sent. Rows of other tables may still be waiting in their batches, 
+		 * so a retry has to resume before the oldest of them.
+		 * 
+		 * @param lastOffset the offset of the last log whose row was added to a batch
+		 * @param rowCount the number of rows added to batches so far
+		 */
+		ExportCheckpoint getCheckpoint(String lastOffset, int rowCount, long cutMs) {
+			TableBatch oldest = null;
+			for (TableBatch table : all) {
+				if (!table.batch.isEmpty() && (oldest == null || table.rowCountBefore < oldest.rowCountBefore)) {
+					oldest = table;
+				}
+			}
+			if (oldest == null) {
+				return new ExportCheckpoint(lastOffset, rowCount, cutMs);
+			}
+			return new ExportCheckpoint(oldest.offsetBefore, oldest.rowCountBefore, cutMs);
+		}
+	}
+
+	/**
+	 * Saves the checkpoint of a batch once it and every batch before it have been sent.
+	 */
+	private static class BatchCheckpoints {
+		private final String taskName;
+		private final StreamingInsertPipeline pipeline;
+		private final LinkedList<ExportCheckpoint> unsent = new LinkedList<>();
+		private long savedBatchCount;
+
+		BatchCheckpoints(String taskName, StreamingInsertPipeline pipeline) {
+			this.taskName = taskName;
+			this.pipeline = pipeline;
+		}
+
+		void batchSubmitted(ExportCheckpoint checkpoint) throws IOException {
+			if (pipeline == null) {
+				checkpoint.save(taskName);
+				return;
+			}
+			unsent.add(checkpoint);
+			
+			ExportCheckpoint latestSent = null;
+			long sentBatchCount = pipeline.getSentBatchCount();
+			while (savedBatchCount < sentBatchCount) {
+				latestSent = unsent.removeFirst();
+				savedBatchCount++;
+			}
+			if (latestSent != null) {
+				latestSent.save(taskName);
+			}
+		}
+	}
+
+	/**
+	 * Send the batch, or hand it to the pipeline, and return an empty batch for the following rows.
+	 */
+	private InsertAllBatch insertBatch(InsertAllBatch batch, String tableId, LogsExportConfiguration exportConfig, 
+			Bigquery bigquery, StreamingInsertPipeline pipeline, RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, boolean gzip) throws IOException {
+		if (pipeline == null) {
+			BigqueryIngester.streamingBatchIngestion(batch, tableId, exportConfig.getBigqueryDatasetId(), exportConfig.getBigqueryProjectId(), bigquery, 
+					retryPolicy, deadLetterSink, gzip);
+			batch.reset();
+			return batch;
+		}
+		pipeline.submit(batch, tableId, exportConfig.getBigqueryDatasetId(), exportConfig.getBigqueryProjectId(), bigquery);
+		return pipeline.obtainBatch();
+	}
+
+	/**
+	 * The LogService logs are read from, override to export from a different source, e.g. in a load test.
+	 */
+	protected LogService getLogService() {
+		return LogServiceFactory.getLogService();
+	}
+
+	/**
+	 * Query the logs of a window with their app log lines.
+	 *
+	 * @param offset the RequestLogs offset to resume after, or null to start with the newest log of the window
+	 */
+	public Iterable<RequestLogs> queryForLogs(long logRangeStartMs, long logRangeEndMs, LogsExportConfiguration exportConfig, 
+			LogsFieldExporterSet exporterSet, String offset) {
+		return queryForLogs(logRangeStartMs, logRangeEndMs, exportConfig, exporterSet, offset, true);
+	}
+
+	/**
+	 * @param offset the RequestLogs offset to resume after, or null to start with the newest log of the window
+	 * @param includeAppLogs whether to fetch the app log lines of each request, see {@link RowPlan#isAppLogsNeeded()}
+	 */
+	public Iterable<RequestLogs> queryForLogs(long logRangeStartMs, long logRangeEndMs, LogsExportConfiguration exportConfig, 
+			LogsFieldExporterSet exporterSet, String offset, boolean includeAppLogs) {
+		LogService ls = getLogService();
 		LogQuery lq = new LogQuery();
 		lq = lq.startTimeMillis(logRangeStartMs)
 				.endTimeMillis(logRangeEndMs)
-				.includeAppLogs(true);
+				.includeAppLogs(includeAppLogs);
+		
+		if (offset != null) {
+			lq = lq.offset(offset);
+		}
 
 		if (exportConfig.getLogLevel() != null) {
 			lq = lq.minLogLevel(exportConfig.getLogLevel());
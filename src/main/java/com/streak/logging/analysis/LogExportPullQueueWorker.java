@@ -0,0 +1,202 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.streak.logging.utils.AnalysisConstants;
+import com.streak.logging.utils.AnalysisUtility;
+import com.streak.logging.utils.ExporterProfile;
+import com.streak.logging.utils.InvalidTaskParameterException;
+import com.streak.logging.utils.RowPlan;
+
+/**
+ * Exports the windows that were put on the pull queue of a configuration
+ * (see {@link TunableLogsExportConfiguration#getPullQueueName()}) in a loop, 
+ * leasing several windows at a time. The exporters are created once and
+ * reused for every window the worker exports.
+ *
+ * Run it on a basic or manual scaling module, e.g. from a cron job every 10
+ * minutes with maxRunSeconds just under the interval. A window that fails is
+ * leased again after RETRY_DELAY_SECONDS and resumes from its checkpoint.
+ */
+@SuppressWarnings("serial")
+public class LogExportPullQueueWorker extends HttpServlet {
+	private static final Logger log = Logger.getLogger("bqlogging");
+
+	private static final long DEFAULT_MAX_RUN_SECONDS = 540;
+	private static final int DEFAULT_LEASE_COUNT = 10;
+	private static final long LEASE_SECONDS = 600;
+	private static final long RETRY_DELAY_SECONDS = 60;
+	private static final long EMPTY_QUEUE_SLEEP_MILLIS = 10000;
+
+	public void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+		resp.setContentType("application/json");
+		
+		String logsExporterConfig = req.getParameter(AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM);
+		if (!AnalysisUtility.areParametersValid(logsExporterConfig)) {
+			resp.getWriter().write(AnalysisUtility.failureJson("Missing required param: " + AnalysisConstants.LOGS_EXPORTER_CONFIGURATION_PARAM));
+			resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		RowPlan plan = RowPlan.forConfiguration(logsExporterConfig);
+		String pullQueueName = ExportTuning.getPullQueueName(plan.getConfiguration());
+		if (!AnalysisUtility.areParametersValid(pullQueueName)) {
+			resp.getWriter().write(AnalysisUtility.failureJson("Exporter config isn't a TunableLogsExportConfiguration or returned null for getPullQueueName()"));
+			resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		
+		long maxRunSeconds = DEFAULT_MAX_RUN_SECONDS;
+		if (AnalysisUtility.areParametersValid(req.getParameter(AnalysisConstants.MAX_RUN_SECONDS_PARAM))) {
+			maxRunSeconds = Long.parseLong(req.getParameter(AnalysisConstants.MAX_RUN_SECONDS_PARAM));
+		}
+		int leaseCount = DEFAULT_LEASE_COUNT;
+		if (AnalysisUtility.areParametersValid(req.getParameter(AnalysisConstants.LEASE_COUNT_PARAM))) {
+			leaseCount = Integer.parseInt(req.getParameter(AnalysisConstants.LEASE_COUNT_PARAM));
+		}
+		
+		Queue queue = QueueFactory.getQueue(pullQueueName);
+		LogExportDirectToBigqueryTask exporter = createExporter();
+		List<List<IndexedLogsFieldExporter>> exportersPerThread = plan.newExportersPerThread();
+		
+		long deadlineMillis = System.currentTimeMillis() + maxRunSeconds * 1000;
+		int exported = 0;
+		int failed = 0;
+		while (System.currentTimeMillis() < deadlineMillis) {
+			List<TaskHandle> tasks = queue.leaseTasksByTag(LEASE_SECONDS, TimeUnit.SECONDS, leaseCount, logsExporterConfig);
+			if (tasks.isEmpty()) {
+				if (System.currentTimeMillis() + EMPTY_QUEUE_SLEEP_MILLIS >= deadlineMillis) {
+					break;
+				}
+				sleep(EMPTY_QUEUE_SLEEP_MILLIS);
+				continue;
+			}
+			
+			for (TaskHandle task : tasks) {
+				if (System.currentTimeMillis() >= deadlineMillis) {
+					// Hand the rest back so other workers don't wait for the lease to expire
+					modifyLease(queue, task, 0);
+					continue;
+				}
+				// The windows before this one may have used up most of its lease
+				if (!modifyLease(queue, task, LEASE_SECONDS)) {
+					continue;
+				}
+				
+				try {
+					exportWindow(exporter, logsExporterConfig, plan, exportersPerThread, task);
+					queue.deleteTask(task);
+					exported++;
+				}
+				catch (InvalidTaskParameterException e) {
+					// Retrying won't help
+					log.severe(e.getMessage());
+					queue.deleteTask(task);
+					failed++;
+				}
+				catch (IOException | RuntimeException e) {
+					log.log(Level.WARNING, "Exporting " + task.getName() + " failed, retrying in " + RETRY_DELAY_SECONDS + "s", e);
+					modifyLease(queue, task, RETRY_DELAY_SECONDS);
+					failed++;
+				}
+			}
+		}
+		
+		log.warning(exported + " windows exported, " + failed + " failed");
+		resp.getWriter().write(AnalysisUtility.successJson(exported + " windows exported, " + failed + " failed"));
+	}
+
+	/**
+	 * Create the task that exports each window, override to read logs from a different source, e.g. in a load test.
+	 */
+	protected LogExportDirectToBigqueryTask createExporter() {
+		return new LogExportDirectToBigqueryTask();
+	}
+
+	private void exportWindow(LogExportDirectToBigqueryTask exporter, String logsExporterConfig, RowPlan plan, 
+			List<List<IndexedLogsFieldExporter>> exportersPerThread, TaskHandle task) throws IOException {
+		Map<String, String> params = new HashMap<>();
+		for (Map.Entry<String, String> param : task.extractParams()) {
+			params.put(param.getKey(), param.getValue());
+		}
+		long logRangeStartMs;
+		long logRangeEndMs;
+		try {
+			logRangeStartMs = Long.parseLong(params.get(AnalysisConstants.LOG_RANGE_START_MS));
+			logRangeEndMs = Long.parseLong(params.get(AnalysisConstants.LOG_RANGE_END_MS));
+		}
+		catch (NumberFormatException e) {
+			throw new InvalidTaskParameterException("Invalid window in task " + task.getName() + ": " + params);
+		}
+		boolean profileExporters = "true".equals(params.get(AnalysisConstants.PROFILE_EXPORTERS_PARAM));
+		
+		log.warning("Exporting " + logRangeStartMs + " - " + logRangeEndMs);
+		if (!profileExporters) {
+			exporter.exportWindow(logsExporterConfig, plan, logRangeStartMs, logRangeEndMs, exportersPerThread, task.getName(), false);
+			return;
+		}
+		// Only this window is profiled, the unwrapped exporters are reused for the next ones
+		List<ExporterProfile> profiles = new ArrayList<>();
+		try {
+			exporter.exportWindow(logsExporterConfig, plan, logRangeStartMs, logRangeEndMs, 
+					LogExportDirectToBigqueryTask.wrapForProfiling(plan, exportersPerThread, profiles), task.getName(), true);
+		}
+		finally {
+			LogExportDirectToBigqueryTask.reportProfiles(profiles);
+		}
+	}
+
+	/**
+	 * @return false if the lease has already expired, and another worker may have leased the window
+	 */
+	private boolean modifyLease(Queue queue, TaskHandle task, long leaseSeconds) {
+		try {
+			queue.modifyTaskLease(task, leaseSeconds, TimeUnit.SECONDS);
+			return true;
+		}
+		catch (IllegalStateException e) {
+			log.warning("Lost the lease of " + task.getName());
+			return false;
+		}
+	}
+
+	private void sleep(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for windows to export");
+		}
+	}
+}
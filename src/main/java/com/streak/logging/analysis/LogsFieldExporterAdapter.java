@@ -0,0 +1,113 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.appengine.api.log.RequestLogs;
+
+/**
+ * Runs a plain {@link LogsFieldExporter} as an {@link IndexedLogsFieldExporter}
+ * by calling processLog and then getField for each field.
+ */
+public class LogsFieldExporterAdapter implements IndexedLogsFieldExporter {
+	private final LogsFieldExporter exporter;
+	private final String[] fieldNames;
+
+	public LogsFieldExporterAdapter(LogsFieldExporter exporter) {
+		this.exporter = exporter;
+		this.fieldNames = new String[exporter.getFieldCount()];
+		for (int i = 0; i < fieldNames.length; i++) {
+			fieldNames[i] = exporter.getFieldName(i).intern();
+		}
+	}
+
+	/**
+	 * @return the exporter itself if it is already indexed, otherwise an adapter around it
+	 */
+	public static IndexedLogsFieldExporter adapt(LogsFieldExporter exporter) {
+		if (exporter instanceof IndexedLogsFieldExporter) {
+			return (IndexedLogsFieldExporter) exporter;
+		}
+		return new LogsFieldExporterAdapter(exporter);
+	}
+
+	public static List<IndexedLogsFieldExporter> adaptAll(List<LogsFieldExporter> exporters) {
+		List<IndexedLogsFieldExporter> adapted = new ArrayList<>(exporters.size());
+		for (LogsFieldExporter exporter : exporters) {
+			adapted.add(adapt(exporter));
+		}
+		return adapted;
+	}
+
+	/**
+	 * @return the wrapped exporter
+	 */
+	public LogsFieldExporter getExporter() {
+		return exporter;
+	}
+
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		exporter.processLog(log);
+		for (int i = 0; i < fieldNames.length; i++) {
+			sink.putObject(i, exporter.getField(fieldNames[i]));
+		}
+	}
+
+	@Override
+	public void processLog(RequestLogs log) {
+		exporter.processLog(log);
+	}
+
+	@Override
+	public Object getField(String name) {
+		return exporter.getField(name);
+	}
+
+	@Override
+	public int getFieldCount() {
+		return fieldNames.length;
+	}
+
+	@Override
+	public String getFieldName(int i) {
+		return fieldNames[i];
+	}
+
+	@Override
+	public String getFieldType(int i) {
+		return exporter.getFieldType(i);
+	}
+
+	@Override
+	public List<TableFieldSchema> getFieldFields(int i) {
+		return exporter.getFieldFields(i);
+	}
+
+	@Override
+	public boolean getFieldNullable(int fieldIndex) {
+		return exporter.getFieldNullable(fieldIndex);
+	}
+
+	@Override
+	public boolean getFieldRepeated(int fieldIndex) {
+		return exporter.getFieldRepeated(fieldIndex);
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.util.List;
+
+/**
+ * A LogsFieldExporterSet whose logs can be transformed on several threads at
+ * once. Exporters keep state between processLog and getField, so every
+ * thread gets its own exporters from {@link #newExporters()}.
+ */
+public interface ParallelLogsFieldExporterSet extends LogsFieldExporterSet {
+	/**
+	 * Create exporters that are used by a single thread. They must be the same
+	 * exporters, in the same order, as those returned by getExporters().
+	 * 
+	 * @return new exporter instances that aren't shared with any other caller
+	 */
+	public List<LogsFieldExporter> newExporters();
+
+	/**
+	 * 
+	 * @return the number of threads transforming logs, return null to use one per available processor
+	 */
+	public Integer getTransformParallelism();
+}
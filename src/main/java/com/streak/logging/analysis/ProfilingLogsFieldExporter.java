@@ -0,0 +1,139 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.utils.ExporterProfile;
+
+/**
+ * Records the cost of every row an exporter writes in an {@link ExporterProfile}.
+ * Plain exporters are timed separately in processLog and getField, indexed
+ * exporters as a whole in writeFields.
+ */
+public class ProfilingLogsFieldExporter implements IndexedLogsFieldExporter {
+	private final IndexedLogsFieldExporter exporter;
+	private final LogsFieldExporter plainExporter;
+	private final String[] fieldNames;
+	private final ExporterProfile profile;
+
+	public ProfilingLogsFieldExporter(IndexedLogsFieldExporter exporter, ExporterProfile profile) {
+		this.exporter = exporter;
+		this.plainExporter = exporter instanceof LogsFieldExporterAdapter ? ((LogsFieldExporterAdapter) exporter).getExporter() : null;
+		this.fieldNames = new String[exporter.getFieldCount()];
+		for (int i = 0; i < fieldNames.length; i++) {
+			fieldNames[i] = exporter.getFieldName(i);
+		}
+		this.profile = profile;
+	}
+
+	/**
+	 * @param exporterNames the names to profile the exporters under, in the same order
+	 * @param profiles receives a new profile for each exporter
+	 */
+	public static List<IndexedLogsFieldExporter> wrapAll(List<IndexedLogsFieldExporter> exporters, List<String> exporterNames, 
+			List<ExporterProfile> profiles) {
+		List<ExporterProfile> newProfiles = new ArrayList<>(exporters.size());
+		for (int i = 0; i < exporters.size(); i++) {
+			newProfiles.add(new ExporterProfile(exporterNames.get(i)));
+		}
+		profiles.addAll(newProfiles);
+		return wrapAll(exporters, newProfiles);
+	}
+
+	/**
+	 * Record into existing profiles, e.g. to profile the exporters of several threads together.
+	 * 
+	 * @param profiles the profile of each exporter, in the same order
+	 */
+	public static List<IndexedLogsFieldExporter> wrapAll(List<IndexedLogsFieldExporter> exporters, List<ExporterProfile> profiles) {
+		List<IndexedLogsFieldExporter> wrapped = new ArrayList<>(exporters.size());
+		for (int i = 0; i < exporters.size(); i++) {
+			wrapped.add(new ProfilingLogsFieldExporter(exporters.get(i), profiles.get(i)));
+		}
+		return wrapped;
+	}
+
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		long startBytes = ExporterProfile.currentThreadAllocatedBytes();
+		long startNanos = System.nanoTime();
+		long processLogNanos;
+		long getFieldNanos = 0;
+		
+		if (plainExporter == null) {
+			exporter.writeFields(log, sink);
+			processLogNanos = System.nanoTime() - startNanos;
+		}
+		else {
+			plainExporter.processLog(log);
+			processLogNanos = System.nanoTime() - startNanos;
+			for (int i = 0; i < fieldNames.length; i++) {
+				long fieldStartNanos = System.nanoTime();
+				Object value = plainExporter.getField(fieldNames[i]);
+				getFieldNanos += System.nanoTime() - fieldStartNanos;
+				sink.putObject(i, value);
+			}
+		}
+		
+		long allocatedBytes = startBytes < 0 ? 0 : ExporterProfile.currentThreadAllocatedBytes() - startBytes;
+		profile.record(processLogNanos, getFieldNanos, allocatedBytes);
+	}
+
+	@Override
+	public void processLog(RequestLogs log) {
+		exporter.processLog(log);
+	}
+
+	@Override
+	public Object getField(String name) {
+		return exporter.getField(name);
+	}
+
+	@Override
+	public int getFieldCount() {
+		return exporter.getFieldCount();
+	}
+
+	@Override
+	public String getFieldName(int i) {
+		return exporter.getFieldName(i);
+	}
+
+	@Override
+	public String getFieldType(int i) {
+		return exporter.getFieldType(i);
+	}
+
+	@Override
+	public List<TableFieldSchema> getFieldFields(int i) {
+		return exporter.getFieldFields(i);
+	}
+
+	@Override
+	public boolean getFieldNullable(int fieldIndex) {
+		return exporter.getFieldNullable(fieldIndex);
+	}
+
+	@Override
+	public boolean getFieldRepeated(int fieldIndex) {
+		return exporter.getFieldRepeated(fieldIndex);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Decides how insertAll requests are retried by the ingester.
+ *
+ * A request that fails with a transient HTTP error is sent again after an
+ * exponential backoff with full jitter: before attempt n+1 it waits a random
+ * time between 0 and min(maxBackoffMillis, initialBackoffMillis * 2^(n-1)).
+ * When only some rows of a request are rejected, only the rows whose errors
+ * are all retryable are sent again, with their original insert ids so
+ * BigQuery still de-duplicates them. The other rows go to the
+ * {@link DeadLetterSink}.
+ */
+public class RetryPolicy {
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 500;
+
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 16000;
+
+	public static final RetryPolicy DEFAULT = new RetryPolicy(DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+
+	/**
+	 * Send every request once, failures are left to the task queue's retries.
+	 */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	private static final Set<Integer> RETRYABLE_STATUS_CODES = new HashSet<>(Arrays.asList(408, 429, 500, 502, 503, 504));
+
+	// "stopped" rows were valid but not inserted because another row of the request was invalid
+	private static final Set<String> RETRYABLE_REASONS = new HashSet<>(Arrays.asList(
+			"backendError", "internalError", "rateLimitExceeded", "timeout", "stopped"));
+
+	private static final Random random = new Random();
+
+	private final int maxAttempts;
+	private final long initialBackoffMillis;
+	private final long maxBackoffMillis;
+
+	/**
+	 * @param maxAttempts the number of times a request is sent, including the first one
+	 * @param initialBackoffMillis the longest wait before the first retry
+	 * @param maxBackoffMillis the longest wait before any retry
+	 */
+	public RetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+		if (maxAttempts < 1 || initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+			throw new IllegalArgumentException("Invalid retry policy: maxAttempts=" + maxAttempts
+					+ ", initialBackoffMillis=" + initialBackoffMillis + ", maxBackoffMillis=" + maxBackoffMillis);
+		}
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public long getInitialBackoffMillis() {
+		return initialBackoffMillis;
+	}
+
+	public long getMaxBackoffMillis() {
+		return maxBackoffMillis;
+	}
+
+	/**
+	 * @param attempt the attempt that just failed, starting at 1
+	 */
+	public boolean canRetry(int attempt) {
+		return attempt < maxAttempts;
+	}
+
+	/**
+	 * @param attempt the attempt that just failed, starting at 1
+	 * @return how long to wait before the next attempt
+	 */
+	public long getBackoffMillis(int attempt) {
+		long ceiling = initialBackoffMillis;
+		for (int i = 1; i < attempt && ceiling < maxBackoffMillis; i++) {
+			ceiling <<= 1;
+		}
+		ceiling = Math.min(ceiling, maxBackoffMillis);
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	public boolean isRetryableStatusCode(int statusCode) {
+		return RETRYABLE_STATUS_CODES.contains(statusCode);
+	}
+
+	public boolean isRetryableReason(String reason) {
+		return RETRYABLE_REASONS.contains(reason);
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy[maxAttempts=" + maxAttempts + ", initialBackoffMillis=" + initialBackoffMillis + ", maxBackoffMillis=" + maxBackoffMillis + "]";
+	}
+}
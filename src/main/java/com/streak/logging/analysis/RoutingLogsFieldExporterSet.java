@@ -0,0 +1,37 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import com.google.appengine.api.log.RequestLogs;
+
+/**
+ * A LogsFieldExporterSet that sends the row of each log to a table chosen
+ * from the log, e.g. by module or version, by status class, or errors to a
+ * table of their own. A window is read from the LogService once and feeds
+ * every table, with a batch of its own per table. All tables get the schema
+ * of the set, in the configuration's dataset, and are created on first use.
+ */
+public interface RoutingLogsFieldExporterSet extends LogsFieldExporterSet {
+	/**
+	 * Called for every log that isn't skipped, by any number of tasks at once.
+	 * 
+	 * @param log the log whose row is sent
+	 * @param tableId the table of the window, from {@link LogsExportConfiguration#getBigqueryTableId(long, long)}
+	 * @return the table to send the row to, or null for the table of the window
+	 */
+	public String getDestinationTableId(RequestLogs log, String tableId);
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * Receives the field values of one exporter for one log entry.
+ *
+ * Field indexes are the exporter's own indexes, the same ones used by
+ * {@link LogsFieldExporter#getFieldName(int) getFieldName} and
+ * {@link LogsFieldExporter#getFieldType(int) getFieldType}. Each field
+ * should be written exactly once per log entry.
+ */
+public interface RowSink {
+
+	/**
+	 * Write an empty value. Throws if the field is not nullable.
+	 *
+	 * @param fieldIndex the field index
+	 */
+	public void putNull(int fieldIndex);
+
+	/**
+	 * @param fieldIndex the index of an integer field
+	 * @param value the field's value
+	 */
+	public void putLong(int fieldIndex, long value);
+
+	/**
+	 * @param fieldIndex the index of a float field
+	 * @param value the field's value
+	 */
+	public void putDouble(int fieldIndex, double value);
+
+	/**
+	 * @param fieldIndex the index of a boolean field
+	 * @param value the field's value
+	 */
+	public void putBoolean(int fieldIndex, boolean value);
+
+	/**
+	 * @param fieldIndex the index of a string field
+	 * @param value the field's value, null is the same as {@link #putNull(int) putNull}
+	 */
+	public void putString(int fieldIndex, String value);
+
+	/**
+	 * Write a value the same way a {@link LogsFieldExporter#getField(String) getField}
+	 * result is written, formatted according to the field's type.
+	 *
+	 * @param fieldIndex the field index
+	 * @param value the field's value, null is the same as {@link #putNull(int) putNull}
+	 */
+	public void putObject(int fieldIndex, Object value);
+
+	/**
+	 * Start the values of a repeated field. Until {@link #endRepeated()}, every
+	 * put or {@link #startRecord(int) startRecord} call for the field adds an
+	 * element. Elements can't be null. A field with no elements is written as
+	 * startRepeated followed by endRepeated.
+	 *
+	 * @param fieldIndex the index of a repeated field
+	 */
+	public void startRepeated(int fieldIndex);
+
+	/**
+	 * End the values of the repeated field started last.
+	 */
+	public void endRepeated();
+
+	/**
+	 * Start the value of a record field, or the next element of a repeated
+	 * record field. Until {@link #endRecord()}, field indexes are the indexes
+	 * of the record's subfields, in the order of
+	 * {@link LogsFieldExporter#getFieldFields(int) getFieldFields}. Subfields
+	 * that are records or repeated are written the same way.
+	 *
+	 * @param fieldIndex the index of a record field
+	 */
+	public void startRecord(int fieldIndex);
+
+	/**
+	 * End the record started last.
+	 */
+	public void endRecord();
+}
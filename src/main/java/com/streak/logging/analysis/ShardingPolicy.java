@@ -0,0 +1,71 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * Decides when an export task splits a busy window into sub-window tasks.
+ *
+ * The LogService returns the newest logs first. Once a task has exported
+ * maxRowsPerTask rows it stops at the next millisecond boundary and splits
+ * the older, unexported part of its window into at most shardCount equal
+ * slices of at least minShardMillis each. Every slice is enqueued as a
+ * separate task, named like any other window, so the slices run in parallel
+ * on other instances and can shard again if they are still too busy.
+ *
+ * The cut is deterministic for a given window, so a retried task enqueues
+ * the same slices and the duplicate task names are ignored.
+ */
+public class ShardingPolicy {
+	private final int maxRowsPerTask;
+	private final int shardCount;
+	private final long minShardMillis;
+
+	/**
+	 * @param maxRowsPerTask the number of rows a task exports before it shards the rest of its window
+	 * @param shardCount the maximum number of slices the rest of the window is split into
+	 * @param minShardMillis the shortest slice that is created
+	 */
+	public ShardingPolicy(int maxRowsPerTask, int shardCount, long minShardMillis) {
+		if (maxRowsPerTask < 1 || shardCount < 1 || minShardMillis < 1) {
+			throw new IllegalArgumentException("Invalid sharding policy: maxRowsPerTask=" + maxRowsPerTask
+					+ ", shardCount=" + shardCount + ", minShardMillis=" + minShardMillis);
+		}
+		this.maxRowsPerTask = maxRowsPerTask;
+		this.shardCount = shardCount;
+		this.minShardMillis = minShardMillis;
+	}
+
+	public int getMaxRowsPerTask() {
+		return maxRowsPerTask;
+	}
+
+	public int getShardCount() {
+		return shardCount;
+	}
+
+	public long getMinShardMillis() {
+		return minShardMillis;
+	}
+
+	/**
+	 * @return the number of slices to split the given range into, 0 if it is too short to split
+	 */
+	public int getShardCount(long rangeStartMs, long rangeEndMs) {
+		long slices = (rangeEndMs - rangeStartMs) / minShardMillis;
+		return (int) Math.min(shardCount, slices);
+	}
+}
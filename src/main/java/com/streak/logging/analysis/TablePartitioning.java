@@ -0,0 +1,119 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Creates the export tables as tables partitioned by day, optionally
+ * clustered, so that queries only scan the days they ask for. Return the
+ * same table id for every window from the configuration instead of a table
+ * per day or month.
+ *
+ * Tables are partitioned by a TIMESTAMP or DATE field of the exporters, or
+ * by ingestion time if field is null. Rows of a table partitioned by
+ * ingestion time are streamed into the partition of the day their request
+ * ended, with a partition decorator, so late and retried windows land in the
+ * right day. BigQuery only accepts decorators for recent days, so rows more
+ * than {@link #MAX_DECORATOR_AGE_MILLIS} old are streamed into the current
+ * partition instead.
+ *
+ * Only new tables are partitioned, BigQuery can't partition an existing table.
+ */
+public class TablePartitioning {
+	public static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+	
+	/**
+	 * BigQuery accepts streaming into partitions up to 31 days in the past.
+	 */
+	public static final long MAX_DECORATOR_AGE_MILLIS = 30 * DAY_MILLIS;
+	
+	/**
+	 * BigQuery clusters by at most 4 fields.
+	 */
+	public static final int MAX_CLUSTERING_FIELDS = 4;
+
+	private final String field;
+	private final Long expirationMs;
+	private final List<String> clusteringFields;
+
+	/**
+	 * @param field the TIMESTAMP or DATE field to partition by, or null to partition by ingestion time
+	 * @param expirationMs how long partitions are kept, or null to keep them
+	 * @param clusteringFields the fields to cluster each partition by, or null
+	 */
+	public TablePartitioning(String field, Long expirationMs, List<String> clusteringFields) {
+		if ((expirationMs != null && expirationMs < 1) 
+				|| (clusteringFields != null && clusteringFields.size() > MAX_CLUSTERING_FIELDS)) {
+			throw new IllegalArgumentException("Invalid table partitioning: field=" + field + ", expirationMs=" + expirationMs 
+					+ ", clusteringFields=" + clusteringFields);
+		}
+		this.field = field;
+		this.expirationMs = expirationMs;
+		this.clusteringFields = clusteringFields == null ? Collections.<String>emptyList() 
+				: Collections.unmodifiableList(new ArrayList<>(clusteringFields));
+	}
+
+	/**
+	 * @return the field tables are partitioned by, or null if they are partitioned by ingestion time
+	 */
+	public String getField() {
+		return field;
+	}
+
+	public Long getExpirationMs() {
+		return expirationMs;
+	}
+
+	public List<String> getClusteringFields() {
+		return clusteringFields;
+	}
+
+	/**
+	 * @return whether rows are streamed with a partition decorator, only for tables partitioned by ingestion time
+	 */
+	public boolean usesDecorators() {
+		return field == null;
+	}
+
+	/**
+	 * @return the start of the UTC day the given time falls in
+	 */
+	public long getPartitionStartMs(long timeMs) {
+		long remainder = timeMs % DAY_MILLIS;
+		return timeMs - (remainder < 0 ? remainder + DAY_MILLIS : remainder);
+	}
+
+	/**
+	 * @return the decorator of the partition starting at the given time, e.g. $20140513
+	 */
+	public String getDecorator(long partitionStartMs) {
+		SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return "$" + format.format(new Date(partitionStartMs));
+	}
+
+	@Override
+	public String toString() {
+		return "TablePartitioning[field=" + field + ", expirationMs=" + expirationMs + ", clusteringFields=" + clusteringFields + "]";
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis;
+
+/**
+ * A LogsExportConfiguration with options to tune the export, see "Tuning the
+ * export" in the README. Return null from any of them to keep the behavior of
+ * a plain LogsExportConfiguration.
+ */
+public interface TunableLogsExportConfiguration extends LogsExportConfiguration {
+	/**
+	 * 
+	 * @return the maximum number of insertAll requests to keep in flight while logs are still being read and transformed. 
+	 * Reading pauses when this many batches are outstanding. Return null to send each batch synchronously
+	 */
+	public Integer getMaxConcurrentInserts();
+	
+	/**
+	 * 
+	 * @return when to send a batch of rows to bigquery, return null to use {@link BatchPolicy#DEFAULT}
+	 */
+	public BatchPolicy getBatchPolicy();
+	
+	/**
+	 * 
+	 * @return when an export task splits the rest of a busy window into separate tasks, return null to always export a window in one task
+	 */
+	public ShardingPolicy getShardingPolicy();
+	
+	/**
+	 * 
+	 * @return how failed insertAll requests and rejected rows are retried, return null to use RetryPolicy.DEFAULT
+	 */
+	public RetryPolicy getRetryPolicy();
+	
+	/**
+	 * 
+	 * @return where rows that BigQuery rejected for good are sent, return null to only log them
+	 */
+	public DeadLetterSink getDeadLetterSink();
+	
+	/**
+	 * 
+	 * @return the pull queue windows are put on for {@link LogExportPullQueueWorker}, return null to export each window in a push task on getQueueName()
+	 */
+	public String getPullQueueName();
+	
+	/**
+	 * 
+	 * @return how to size windows from the log volume of recent windows, return null to always export windows of getMillisPerExport()
+	 */
+	public AdaptiveWindowPolicy getAdaptiveWindowPolicy();
+	
+	/**
+	 * 
+	 * @return how new tables are partitioned and clustered, return null to create plain tables
+	 */
+	public TablePartitioning getTablePartitioning();
+}
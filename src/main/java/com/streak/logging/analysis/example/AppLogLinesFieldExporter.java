@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis.example;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.appengine.api.log.AppLogLine;
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
+
+/**
+ * Exports the app log lines of a request as a repeated record with the time,
+ * level and message of each line, so they can be queried without parsing one
+ * long string:
+ * 
+ * <pre>SELECT appLogLines.message FROM ... WHERE appLogLines.level = 'ERROR'</pre>
+ * 
+ * Requests that log a lot are cut at maxLines lines and messages at
+ * maxMessageLength characters, to stay under the BigQuery row size limit.
+ */
+public class AppLogLinesFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
+	public static final int DEFAULT_MAX_LINES = 1000;
+	public static final int DEFAULT_MAX_MESSAGE_LENGTH = 8192;
+	
+	// Subfield indexes
+	private static final int TIME = 0;
+	private static final int LEVEL = 1;
+	private static final int MESSAGE = 2;
+	
+	private final String fieldName;
+	private final int maxLines;
+	private final int maxMessageLength;
+	
+	private RequestLogs log;
+
+	public AppLogLinesFieldExporter() {
+		this("appLogLines", DEFAULT_MAX_LINES, DEFAULT_MAX_MESSAGE_LENGTH);
+	}
+
+	/**
+	 * @param fieldName the name of the repeated record field
+	 * @param maxLines the number of lines of a request to export
+	 * @param maxMessageLength the number of characters of a message to export
+	 */
+	public AppLogLinesFieldExporter(String fieldName, int maxLines, int maxMessageLength) {
+		this.fieldName = fieldName.intern();
+		this.maxLines = maxLines;
+		this.maxMessageLength = maxMessageLength;
+	}
+
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		extractor.requireAppLogLines();
+	}
+
+	@Override
+	public void processLog(RequestLogs log) {
+		this.log = log;
+	}
+
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		List<AppLogLine> lines = log.getAppLogLines();
+		int lineCount = Math.min(lines.size(), maxLines);
+		sink.startRepeated(0);
+		for (int i = 0; i < lineCount; i++) {
+			AppLogLine line = lines.get(i);
+			sink.startRecord(0);
+			sink.putDouble(TIME, line.getTimeUsec() / 1e6);
+			sink.putString(LEVEL, line.getLogLevel() == null ? null : line.getLogLevel().name());
+			sink.putString(MESSAGE, truncate(line.getLogMessage()));
+			sink.endRecord();
+		}
+		sink.endRepeated();
+	}
+
+	private String truncate(String message) {
+		if (message == null || message.length() <= maxMessageLength) {
+			return message;
+		}
+		return message.substring(0, maxMessageLength);
+	}
+
+	/**
+	 * Only used when exporters are run by name, builds a map per line.
+	 */
+	@Override
+	public Object getField(String name) {
+		if (name != fieldName) {
+			return null;
+		}
+		List<AppLogLine> lines = log.getAppLogLines();
+		int lineCount = Math.min(lines.size(), maxLines);
+		List<Map<String, Object>> records = new ArrayList<>(lineCount);
+		for (int i = 0; i < lineCount; i++) {
+			AppLogLine line = lines.get(i);
+			Map<String, Object> record = new LinkedHashMap<>();
+			record.put("time", line.getTimeUsec() / 1e6);
+			if (line.getLogLevel() != null) {
+				record.put("level", line.getLogLevel().name());
+			}
+			if (line.getLogMessage() != null) {
+				record.put("message", truncate(line.getLogMessage()));
+			}
+			records.add(record);
+		}
+		return records;
+	}
+
+	@Override
+	public int getFieldCount() {
+		return 1;
+	}
+
+	@Override
+	public String getFieldName(int i) {
+		return fieldName;
+	}
+
+	@Override
+	public String getFieldType(int i) {
+		return "record";
+	}
+
+	@Override
+	public boolean getFieldNullable(int i) {
+		return true;
+	}
+
+	@Override
+	public boolean getFieldRepeated(int i) {
+		return true;
+	}
+
+	@Override
+	public List<TableFieldSchema> getFieldFields(int i) {
+		List<TableFieldSchema> subfields = new ArrayList<>();
+		subfields.add(new TableFieldSchema().setName("time").setType("timestamp").setMode("REQUIRED"));
+		subfields.add(new TableFieldSchema().setName("level").setType("string").setMode("NULLABLE"));
+		subfields.add(new TableFieldSchema().setName("message").setType("string").setMode("NULLABLE"));
+		return subfields;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.analysis.example;
+
+import java.util.List;
+
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
+
+/**
+ * Exports a capturing group of the first app log line of a request that
+ * matches a pattern, e.g. a user id the app logs on every request:
+ * 
+ * <pre>new AppLogPatternFieldExporter("userId", "^User id: (\\d+)", 1)</pre>
+ */
+public class AppLogPatternFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
+	private final String fieldName;
+	private final String regex;
+	private final int group;
+	
+	private AppLogExtractor.Match match;
+	private String value;
+
+	/**
+	 * @param fieldName the name of the string field
+	 * @param regex the pattern to find in the app log lines
+	 * @param group the capturing group to export, 0 for the whole match
+	 */
+	public AppLogPatternFieldExporter(String fieldName, String regex, int group) {
+		this.fieldName = fieldName.intern();
+		this.regex = regex;
+		this.group = group;
+	}
+
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		match = extractor.addPattern(regex);
+	}
+
+	@Override
+	public void processLog(RequestLogs log) {
+		value = match.find(log) ? match.group(group) : null;
+	}
+
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putString(0, match.find(log) ? match.group(group) : null);
+	}
+
+	@Override
+	public Object getField(String name) {
+		if (name == fieldName) {
+			return value;
+		}
+		return null;
+	}
+
+	@Override
+	public int getFieldCount() {
+		return 1;
+	}
+
+	@Override
+	public String getFieldName(int i) {
+		return fieldName;
+	}
+
+	@Override
+	public String getFieldType(int i) {
+		return "string";
+	}
+
+	@Override
+	public boolean getFieldNullable(int i) {
+		return true;
+	}
+
+	@Override
+	public boolean getFieldRepeated(int i) {
+		return false;
+	}
+
+	@Override
+	public List<TableFieldSchema> getFieldFields(int i) {
+		return null;
+	}
+}
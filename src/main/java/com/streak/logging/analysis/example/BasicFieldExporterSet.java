@@ -28,7 +28,7 @@ public class BasicFieldExporterSet implements LogsFieldExporterSet {
 
 	@Override
 	public List<LogsFieldExporter> getExporters() {
-		return Arrays.asList(
+		return Arrays.<LogsFieldExporter>asList(
 				new HttpTransactionFieldExporter(),
 				new InstanceFieldExporter(),
 				new PerformanceFieldExporter(),
@@ -21,9 +21,12 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class HttpTransactionFieldExporter implements LogsFieldExporter {
+public class HttpTransactionFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	private static final List<String> NAMES = Arrays.asList(
 			"httpStatus", "method", "httpVersion", "requestId");
 	
@@ -32,6 +35,11 @@ public class HttpTransactionFieldExporter implements LogsFieldExporter {
 	private String httpVersion;
 	private String requestId;
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		httpStatus = log.getStatus();
@@ -40,6 +48,14 @@ public class HttpTransactionFieldExporter implements LogsFieldExporter {
 		requestId = log.getRequestId();
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putLong(0, log.getStatus());
+		sink.putString(1, log.getMethod());
+		sink.putString(2, log.getHttpVersion());
+		sink.putString(3, log.getRequestId());
+	}
+
 	@Override
 	public Object getField(String name) {
 		if (name == "httpStatus") {
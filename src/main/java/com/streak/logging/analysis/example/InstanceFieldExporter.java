@@ -20,16 +20,29 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class InstanceFieldExporter implements LogsFieldExporter {
+public class InstanceFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	private String instanceKey;
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		instanceKey = log.getInstanceKey();
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putString(0, log.getInstanceKey());
+	}
+
 	@Override
 	public Object getField(String name) {
 		return instanceKey;
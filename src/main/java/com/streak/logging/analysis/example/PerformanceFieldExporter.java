@@ -21,9 +21,12 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class PerformanceFieldExporter implements LogsFieldExporter {
+public class PerformanceFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	private static final List<String> NAMES = Arrays.asList(
 			"cost", 
 			"responseSize", 
@@ -45,6 +48,11 @@ public class PerformanceFieldExporter implements LogsFieldExporter {
 	private boolean loadingRequest;
 	private double cost;
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		cost = log.getCost();
@@ -55,6 +63,16 @@ public class PerformanceFieldExporter implements LogsFieldExporter {
 		latencyUsec = log.getLatencyUsec();
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putDouble(0, log.getCost());
+		sink.putLong(1, log.getResponseSize());
+		sink.putLong(2, log.getMcycles());
+		sink.putBoolean(3, log.isLoadingRequest());
+		sink.putLong(4, log.getPendingTimeUsec());
+		sink.putLong(5, log.getLatencyUsec());
+	}
+
 	@Override
 	public Object getField(String name) {
 		if (name == "cost") {
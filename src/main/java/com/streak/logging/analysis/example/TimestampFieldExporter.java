@@ -20,16 +20,29 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class TimestampFieldExporter implements LogsFieldExporter {
+public class TimestampFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	private long timestamp;
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		timestamp = log.getStartTimeUsec();
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putLong(0, log.getStartTimeUsec());
+	}
+
 	@Override
 	public Object getField(String name) {
 		return timestamp;
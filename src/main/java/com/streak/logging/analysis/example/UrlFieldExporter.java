@@ -21,15 +21,23 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class UrlFieldExporter implements LogsFieldExporter {
+public class UrlFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	private static final List<String> NAMES = Arrays.asList("host", "path", "resource");
 	
 	String host = "";
 	String path = "";
 	String resource = "";
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		host = log.getHost();
@@ -37,6 +45,15 @@ public class UrlFieldExporter implements LogsFieldExporter {
 		path = resource.indexOf("?") > -1 ? resource.substring(0, resource.indexOf("?")) : resource;
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		String resource = log.getResource();
+		int queryStart = resource.indexOf('?');
+		sink.putString(0, log.getHost());
+		sink.putString(1, queryStart > -1 ? resource.substring(0, queryStart) : resource);
+		sink.putString(2, resource);
+	}
+
 	@Override
 	public Object getField(String name) {
 		// Since we're using string constants both places, we can use ==
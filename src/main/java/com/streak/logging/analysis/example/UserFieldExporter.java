@@ -21,15 +21,23 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class UserFieldExporter implements LogsFieldExporter {
+public class UserFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	public List<String> NAMES = Arrays.asList("nickname", "ip", "userAgent");
 	
 	private String nickname;
 	private String ip;
 	private String userAgent;
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		nickname = log.getNickname();
@@ -37,6 +45,13 @@ public class UserFieldExporter implements LogsFieldExporter {
 		userAgent = log.getUserAgent();
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putString(0, log.getNickname());
+		sink.putString(1, log.getIp());
+		sink.putString(2, log.getUserAgent());
+	}
+
 	@Override
 	public Object getField(String name) {
 		if (name == "nickname") {
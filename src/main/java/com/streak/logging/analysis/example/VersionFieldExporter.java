@@ -21,21 +21,35 @@ import java.util.List;
 
 import com.google.api.services.bigquery.model.TableFieldSchema;
 import com.google.appengine.api.log.RequestLogs;
-import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.RowSink;
 
-public class VersionFieldExporter implements LogsFieldExporter {
+public class VersionFieldExporter implements IndexedLogsFieldExporter, AppLogsFieldExporter {
 	private static final List<String> NAMES = Arrays.asList("versionId", "moduleId");
 
 	
 	private String versionId;
 	private String moduleId;
 	
+	@Override
+	public void registerAppLogPatterns(AppLogExtractor extractor) {
+		// Doesn't read app log lines
+	}
+
 	@Override
 	public void processLog(RequestLogs log) {
 		versionId = log.getVersionId();
 		moduleId = log.getModuleId();
 	}
 
+	@Override
+	public void writeFields(RequestLogs log, RowSink sink) {
+		sink.putString(0, log.getVersionId());
+		sink.putString(1, log.getModuleId());
+	}
+
 	@Override
 	public Object getField(String name) {
 		// Since we're using string constants both places, we can use ==
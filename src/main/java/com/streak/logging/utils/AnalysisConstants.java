@@ -34,6 +34,13 @@ public class AnalysisConstants {
 	public static final String MS_PER_TABLE_PARAM = "msPerTable";
 	public static final String MS_PER_FILE_PARAM = "msPerFile";
 	public static final String LOGS_EXPORTER_CONFIGURATION_PARAM = "logsExportConfiguration";
+	public static final String PROFILE_EXPORTERS_PARAM = "profileExporters";
+	public static final String MAX_RUN_SECONDS_PARAM = "maxRunSeconds";
+	public static final String LEASE_COUNT_PARAM = "leaseCount";
+	public static final String ROWS_PER_SECOND_PARAM = "rowsPerSecond";
+	public static final String MAX_CONCURRENT_WINDOWS_PARAM = "maxConcurrentWindows";
+	public static final String BACKFILL_ID_PARAM = "backfillId";
+	public static final String BACKFILL_STEP_PARAM = "step";
 	public static final String QUEUE_NAME_PARAM = "queueName";
 	public static final String LOG_LEVEL_PARAM = "logLevel";
 	public static final String EXPORT_NAME_PARAM = "exportName";
@@ -17,15 +17,12 @@
 package com.streak.logging.utils;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -40,18 +37,22 @@ import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
+import com.google.api.client.googleapis.extensions.appengine.auth.oauth2.AppIdentityCredential;
 import com.google.api.client.http.GenericUrl;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpResponse;
-import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.model.TableSchema;
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.utils.SystemProperty;
 import com.google.appengine.api.utils.SystemProperty.Environment.Value;
+import com.google.apphosting.api.ApiProxy;
 import com.streak.datastore.analysis.builtin.BuiltinDatastoreExportConfiguration;
 import com.streak.logging.analysis.LogsExportConfiguration;
-import com.streak.logging.analysis.LogsFieldExporter;
 import com.streak.logging.analysis.LogsFieldExporterSet;
 
 public class AnalysisUtility {
@@ -60,6 +61,46 @@ public class AnalysisUtility {
 		return SystemProperty.environment.value() == Value.Development;
 	}
 	
+	/**
+	 * App Engine only allows threads created through ThreadManager. Outside of an
+	 * App Engine request (e.g. in a local harness) fall back to plain threads.
+	 */
+	public static ThreadFactory getRequestThreadFactory() {
+		if (ApiProxy.getCurrentEnvironment() == null) {
+			return Executors.defaultThreadFactory();
+		}
+		return ThreadManager.currentRequestThreadFactory();
+	}
+	
+	/**
+	 * Threads that outlive the request that created them. App Engine only allows 
+	 * them on manual and basic scaling instances.
+	 */
+	public static ThreadFactory getBackgroundThreadFactory() {
+		if (ApiProxy.getCurrentEnvironment() == null) {
+			return Executors.defaultThreadFactory();
+		}
+		return ThreadManager.backgroundThreadFactory();
+	}
+	
+	/**
+	 * Created on first use, so that it isn't created in apps that bring their own client.
+	 */
+	private static class DefaultBigqueryHolder {
+		static final Bigquery BIGQUERY = new Bigquery.Builder(new NetHttpTransport(), new JacksonFactory(), 
+				new AppIdentityCredential(AnalysisConstants.SCOPES)).setApplicationName("Streak Logs").build();
+	}
+	
+	/**
+	 * A Bigquery client authorized as the app's service account, shared by all 
+	 * requests of the instance so that connections and access tokens are reused.
+	 * Return it from {@link LogsExportConfiguration#getBigquery()} unless you 
+	 * need a different account.
+	 */
+	public static Bigquery getDefaultBigquery() {
+		return DefaultBigqueryHolder.BIGQUERY;
+	}
+	
 	public static long round(long x, long roundMultiple) {
 		return (x / roundMultiple) * roundMultiple;
 	}
@@ -184,73 +225,28 @@ public class AnalysisUtility {
 	}
 
 	public static String computeSchemaHash(LogsFieldExporterSet exporterSet) {
-		try {
-			List<LogsFieldExporter> exporters = exporterSet.getExporters();
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			for (LogsFieldExporter exporter : exporters) {
-				for (int i = 0; i < exporter.getFieldCount(); i++) {
-					md.update(exporter.getFieldName(i).getBytes("UTF-8"));
-					md.update(exporter.getFieldType(i).getBytes("UTF-8"));
-				}
-			}
-			byte[] array = md.digest();
-			StringBuffer sb = new StringBuffer();
-			for (int i = 0; i < array.length; ++i) {
-				sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1,3));
-			}
-			return sb.toString().substring(0, 6);
-		} catch (NoSuchAlgorithmException nsae) {
-			throw new RuntimeException("Couldn't find MD5 algorithm for schema hash", nsae);
-		} catch (UnsupportedEncodingException e) {
-			throw new RuntimeException("Couldn't get UTF-8 encoding for schema hash", e);
-		}
+		return RowPlan.forExporterSet(exporterSet).getSchemaHash();
 	}
 	
 	public static TableSchema createSchema(LogsFieldExporterSet exporterSet) {
-		Set<String> fieldNames = new HashSet<String>();
-		
-		List<LogsFieldExporter> exporters = exporterSet.getExporters();
-		TableSchema schema = new TableSchema();
-		schema.setFields(new ArrayList<TableFieldSchema>());
-		
-		for (LogsFieldExporter exporter : exporters) {
-			for (int i = 0; i < exporter.getFieldCount(); i++) {
-				String fieldName = exporter.getFieldName(i);
-				String fieldMode = "NULLABLE";
-				String fieldType = exporter.getFieldType(i).toLowerCase().intern();
-				
-				if (fieldNames.contains(fieldName)) {
-					throw new InvalidFieldException("BigqueryFieldExporterSet " + exporterSet.getClass().getCanonicalName()
-							+ " defines multiple fields with name " + exporter.getFieldName(i));
-				}
-				fieldNames.add(fieldName);
-				
-				if (exporter.getFieldRepeated(i)) {
-					fieldMode = "REPEATED";
-				}
-				
-				List<TableFieldSchema> subfields = null;
-				if (fieldType.equals("record")) {
-					subfields = exporter.getFieldFields(i);
-				}
-				
-				TableFieldSchema tfs = new TableFieldSchema();
-				tfs.setName(fieldName);
-				tfs.setType(fieldType);
-				tfs.setMode(fieldMode);
-				
-				if (subfields != null) {
-					tfs.setFields(subfields);
-				}
-				schema.getFields().add(tfs);
-			}
-		}
-		return schema;
+		return RowPlan.forExporterSet(exporterSet).getSchema();
 	}
 	
+	/**
+	 * Records are passed as maps and repeated fields as lists, which the JSON
+	 * serializer writes as they are. The elements of a repeated string field are
+	 * converted like a single value.
+	 */
 	public static void putJsonValueFormatted(Map<String, Object> row, String fieldName, Object fieldValue, String fieldType) throws JSONException {
 		// These strings have been interned so == works for comparison
-		if ("string" == fieldType) {
+		if ("string" == fieldType && fieldValue instanceof Iterable) {
+			List<String> stringValues = new ArrayList<>();
+			for (Object element : (Iterable<?>) fieldValue) {
+				stringValues.add(element instanceof Text ? ((Text) element).getValue() : element.toString());
+			}
+			row.put(fieldName, stringValues);
+		}
+		else if ("string" == fieldType) {
 			String stringValue;
 			if (fieldValue instanceof Text) {
 				stringValue = ((Text) fieldValue).getValue();
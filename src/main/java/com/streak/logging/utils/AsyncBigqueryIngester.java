@@ -0,0 +1,313 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.streak.logging.analysis.DeadLetterSink;
+import com.streak.logging.analysis.RetryPolicy;
+
+/**
+ * Sends insertAll requests on a thread pool and returns a Future for each of
+ * them, so callers don't wait for a round trip to BigQuery. Requests to
+ * different tables, and up to maxInFlightPerTable requests to the same
+ * table, are sent at the same time.
+ *
+ * Submitting never blocks. Requests beyond the limit of a table wait in a
+ * queue for that table and are sent in the order they were submitted.
+ *
+ * Requests are sent with the same retries as
+ * {@link BigqueryIngester#streamingBatchIngestion(InsertAllBatch, String, String, String, Bigquery, RetryPolicy, DeadLetterSink)},
+ * and their failures are thrown from {@link Future#get()}.
+ *
+ * By default requests are sent on request threads, which can't outlive the
+ * request that created them, so call {@link #close()} before returning. To
+ * keep sending after the request has returned, pass an executor built from
+ * ThreadManager.backgroundThreadFactory() on a module that allows
+ * background threads.
+ */
+public class AsyncBigqueryIngester {
+	public static final int DEFAULT_MAX_IN_FLIGHT_PER_TABLE = 4;
+
+	private final Bigquery bigquery;
+	private final int maxInFlightPerTable;
+	private final RetryPolicy retryPolicy;
+	private final DeadLetterSink deadLetterSink;
+	private final boolean gzip;
+	private final ExecutorService executor;
+	private final boolean ownsExecutor;
+	private final ConcurrentMap<String, TableQueue> tables = new ConcurrentHashMap<>();
+	private final Object outstandingLock = new Object();
+	private int outstanding;
+	private boolean closed;
+
+	public AsyncBigqueryIngester(Bigquery bigquery) {
+		this(bigquery, DEFAULT_MAX_IN_FLIGHT_PER_TABLE, RetryPolicy.DEFAULT, null, null);
+	}
+
+	/**
+	 * @param maxInFlightPerTable the maximum number of requests sent to one table at the same time
+	 * @param deadLetterSink receives rows that are rejected for good, or null to only log them
+	 * @param executor the threads requests are sent on, or null to use request threads that are shut down by {@link #close()}
+	 */
+	public AsyncBigqueryIngester(Bigquery bigquery, int maxInFlightPerTable, RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, 
+			ExecutorService executor) {
+		this(bigquery, maxInFlightPerTable, retryPolicy, deadLetterSink, executor, false);
+	}
+
+	/**
+	 * @param maxInFlightPerTable the maximum number of requests sent to one table at the same time
+	 * @param deadLetterSink receives rows that are rejected for good, or null to only log them
+	 * @param executor the threads requests are sent on, or null to use request threads that are shut down by {@link #close()}
+	 * @param gzip whether request bodies are sent gzip encoded
+	 */
+	public AsyncBigqueryIngester(Bigquery bigquery, int maxInFlightPerTable, RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, 
+			ExecutorService executor, boolean gzip) {
+		if (maxInFlightPerTable < 1) {
+			throw new IllegalArgumentException("maxInFlightPerTable must be at least 1, got " + maxInFlightPerTable);
+		}
+		this.bigquery = bigquery;
+		this.maxInFlightPerTable = maxInFlightPerTable;
+		this.retryPolicy = retryPolicy;
+		this.deadLetterSink = deadLetterSink;
+		this.gzip = gzip;
+		this.ownsExecutor = executor == null;
+		this.executor = executor != null ? executor : Executors.newCachedThreadPool(AnalysisUtility.getRequestThreadFactory());
+	}
+
+	public Future<TableDataInsertAllResponse> streamingRowIngestion(Map<String, Object> row, String insertId, 
+			String tableId, String datasetId, String projectId) {
+		return streamingRowIngestion(Arrays.asList(row), Arrays.asList(insertId), tableId, datasetId, projectId);
+	}
+
+	/**
+	 * @param insertIds the insert id of each row, or null to let BigQuery generate them
+	 */
+	public Future<TableDataInsertAllResponse> streamingRowIngestion(List<Map<String, Object>> rows, List<String> insertIds, 
+			String tableId, String datasetId, String projectId) {
+		assert insertIds == null || rows.size() == insertIds.size();
+		
+		return streamingBatchIngestion(BigqueryIngester.toBatch(rows, insertIds), tableId, datasetId, projectId);
+	}
+
+	/**
+	 * Queue a serialized batch. The batch must not be touched by the caller until the returned Future is done.
+	 * 
+	 * @return the response to the last request that was sent for the batch
+	 */
+	public Future<TableDataInsertAllResponse> streamingBatchIngestion(final InsertAllBatch batch, final String tableId, 
+			final String datasetId, final String projectId) {
+		synchronized (outstandingLock) {
+			if (closed) {
+				throw new IllegalStateException("AsyncBigqueryIngester is closed");
+			}
+			outstanding++;
+		}
+		
+		TableQueue table = getTableQueue(projectId + ":" + datasetId + "." + tableId);
+		InsertTask task = new InsertTask(table, new Callable<TableDataInsertAllResponse>() {
+			@Override
+			public TableDataInsertAllResponse call() throws IOException {
+				return BigqueryIngester.streamingBatchIngestion(batch, tableId, datasetId, projectId, bigquery, retryPolicy, deadLetterSink, gzip);
+			}
+		});
+		table.submit(task);
+		return task;
+	}
+
+	/**
+	 * @return the number of requests that have been submitted and aren't done yet
+	 */
+	public int getOutstandingCount() {
+		synchronized (outstandingLock) {
+			return outstanding;
+		}
+	}
+
+	/**
+	 * Wait until every request submitted so far is done, whether it succeeded or not.
+	 */
+	public void flush() throws IOException {
+		synchronized (outstandingLock) {
+			while (outstanding > 0) {
+				try {
+					outstandingLock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for insertAll requests");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting requests, wait for the submitted ones and shut down the threads if the ingester created them.
+	 */
+	public void close() throws IOException {
+		synchronized (outstandingLock) {
+			closed = true;
+		}
+		try {
+			flush();
+		}
+		finally {
+			if (ownsExecutor) {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private TableQueue getTableQueue(String key) {
+		TableQueue table = tables.get(key);
+		if (table == null) {
+			table = new TableQueue();
+			TableQueue existing = tables.putIfAbsent(key, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return table;
+	}
+
+	private void requestDone() {
+		synchronized (outstandingLock) {
+			outstanding--;
+			if (outstanding == 0) {
+				outstandingLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * The requests of one table that are waiting for an in-flight slot.
+	 */
+	private class TableQueue {
+		private final LinkedList<InsertTask> waiting = new LinkedList<>();
+		private int inFlight;
+
+		void submit(InsertTask task) {
+			synchronized (this) {
+				if (inFlight >= maxInFlightPerTable) {
+					waiting.add(task);
+					return;
+				}
+				inFlight++;
+			}
+			dispatch(task);
+		}
+
+		/**
+		 * @return false if the task was cancelled before it started, and {@link #done(InsertTask)} frees its slot
+		 */
+		synchronized boolean start(InsertTask task) {
+			if (task.isDone()) {
+				return false;
+			}
+			task.started = true;
+			return true;
+		}
+
+		void done(InsertTask task) {
+			synchronized (this) {
+				if (waiting.remove(task)) {
+					// Cancelled while waiting, it never took a slot
+					return;
+				}
+				if (task.started) {
+					// Still sending if it was cancelled, run() frees the slot when it returns
+					return;
+				}
+			}
+			// Dispatched but cancelled or rejected before it started
+			release();
+		}
+
+		/**
+		 * Hand the slot of a task that is done to the next waiting task.
+		 */
+		void release() {
+			InsertTask next;
+			synchronized (this) {
+				next = waiting.poll();
+				if (next == null) {
+					inFlight--;
+					return;
+				}
+			}
+			dispatch(next);
+		}
+
+		private void dispatch(InsertTask task) {
+			try {
+				executor.execute(task);
+			}
+			catch (RejectedExecutionException e) {
+				task.fail(e);
+			}
+		}
+	}
+
+	private class InsertTask extends FutureTask<TableDataInsertAllResponse> {
+		private final TableQueue table;
+		// Guarded by the table queue
+		private boolean started;
+
+		InsertTask(TableQueue table, Callable<TableDataInsertAllResponse> callable) {
+			super(callable);
+			this.table = table;
+		}
+
+		void fail(Throwable t) {
+			setException(t);
+		}
+
+		@Override
+		public void run() {
+			if (!table.start(this)) {
+				return;
+			}
+			try {
+				super.run();
+			}
+			finally {
+				table.release();
+			}
+		}
+
+		@Override
+		protected void done() {
+			table.done(this);
+			requestDone();
+		}
+	}
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.gson.Gson;
+
+/**
+ * The state of a backfill of a past range of logs, kept in the datastore so
+ * a backfill survives instance restarts and can be queried while it runs.
+ *
+ * The range is split into windows aligned to the configuration's
+ * millisPerExport, the same windows cron exports. Windows are enqueued
+ * oldest first. A window is in flight from the time it is enqueued until
+ * its task marks it exported, or until it times out.
+ */
+public class BackfillProgress {
+	public static final String KIND = "MacheBackfill";
+
+	private final String id;
+	private final String configClassName;
+	private final long startMs;
+	private final long endMs;
+	private final long millisPerWindow;
+	private final long rowsPerSecond;
+	private final int maxConcurrentWindows;
+
+	// Part of the task names, so a backfill started again for the same range gets new tasks
+	private long createdMs;
+	private long nextWindowStartMs;
+	private int step;
+	private int windowsEnqueued;
+	private int windowsExported;
+	private int windowsTimedOut;
+	private int windowsSkipped;
+	private long rowsExported;
+	private List<String> inFlightTaskNames = new ArrayList<>();
+	private List<Long> inFlightEtas = new ArrayList<>();
+
+	/**
+	 * @param startMs the start of the range, rounded down to a window boundary
+	 * @param endMs the end of the range, rounded up to a window boundary
+	 */
+	public BackfillProgress(String configClassName, long startMs, long endMs, long millisPerWindow, long rowsPerSecond, int maxConcurrentWindows) {
+		if (endMs <= startMs || millisPerWindow < 1 || rowsPerSecond < 1 || maxConcurrentWindows < 1) {
+			throw new IllegalArgumentException("Invalid backfill: " + startMs + " - " + endMs + ", millisPerWindow=" + millisPerWindow 
+					+ ", rowsPerSecond=" + rowsPerSecond + ", maxConcurrentWindows=" + maxConcurrentWindows);
+		}
+		this.configClassName = configClassName;
+		this.millisPerWindow = millisPerWindow;
+		this.startMs = AnalysisUtility.round(startMs, millisPerWindow);
+		this.endMs = AnalysisUtility.round(endMs + millisPerWindow - 1, millisPerWindow);
+		this.rowsPerSecond = rowsPerSecond;
+		this.maxConcurrentWindows = maxConcurrentWindows;
+		this.id = getId(configClassName, this.startMs, this.endMs);
+		this.nextWindowStartMs = this.startMs;
+		this.createdMs = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the id of the backfill of a range, the same every time the range is backfilled
+	 */
+	public static String getId(String configClassName, long startMs, long endMs) {
+		return startMs + "_" + endMs + "_" + Integer.toHexString(configClassName.hashCode());
+	}
+
+	/**
+	 * @return the backfill, or null if there is none with the id
+	 */
+	public static BackfillProgress load(DatastoreService datastore, Transaction txn, String id) {
+		Entity entity;
+		try {
+			entity = datastore.get(txn, getKey(id));
+		}
+		catch (EntityNotFoundException e) {
+			return null;
+		}
+		BackfillProgress progress = new BackfillProgress((String) entity.getProperty("configClassName"), 
+				(Long) entity.getProperty("startMs"), (Long) entity.getProperty("endMs"), (Long) entity.getProperty("millisPerWindow"), 
+				(Long) entity.getProperty("rowsPerSecond"), ((Long) entity.getProperty("maxConcurrentWindows")).intValue());
+		// Backfills saved before windows had names of their own have neither property
+		progress.createdMs = entity.hasProperty("createdMs") ? (Long) entity.getProperty("createdMs") : 0;
+		progress.nextWindowStartMs = (Long) entity.getProperty("nextWindowStartMs");
+		progress.step = ((Long) entity.getProperty("step")).intValue();
+		progress.windowsEnqueued = ((Long) entity.getProperty("windowsEnqueued")).intValue();
+		progress.windowsExported = ((Long) entity.getProperty("windowsExported")).intValue();
+		progress.windowsTimedOut = ((Long) entity.getProperty("windowsTimedOut")).intValue();
+		progress.windowsSkipped = entity.hasProperty("windowsSkipped") ? ((Long) entity.getProperty("windowsSkipped")).intValue() : 0;
+		progress.rowsExported = (Long) entity.getProperty("rowsExported");
+		progress.inFlightTaskNames = getList(entity, "inFlightTaskNames");
+		progress.inFlightEtas = getList(entity, "inFlightEtas");
+		return progress;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> List<T> getList(Entity entity, String property) {
+		// The datastore returns null for an empty list
+		Collection<T> values = (Collection<T>) entity.getProperty(property);
+		return values == null ? new ArrayList<T>() : new ArrayList<T>(values);
+	}
+
+	public void save(DatastoreService datastore, Transaction txn) {
+		Entity entity = new Entity(getKey(id));
+		entity.setUnindexedProperty("configClassName", configClassName);
+		entity.setUnindexedProperty("startMs", startMs);
+		entity.setUnindexedProperty("endMs", endMs);
+		entity.setUnindexedProperty("millisPerWindow", millisPerWindow);
+		entity.setUnindexedProperty("rowsPerSecond", rowsPerSecond);
+		entity.setUnindexedProperty("maxConcurrentWindows", maxConcurrentWindows);
+		entity.setUnindexedProperty("createdMs", createdMs);
+		entity.setUnindexedProperty("nextWindowStartMs", nextWindowStartMs);
+		entity.setUnindexedProperty("step", step);
+		entity.setUnindexedProperty("windowsEnqueued", windowsEnqueued);
+		entity.setUnindexedProperty("windowsExported", windowsExported);
+		entity.setUnindexedProperty("windowsTimedOut", windowsTimedOut);
+		entity.setUnindexedProperty("windowsSkipped", windowsSkipped);
+		entity.setUnindexedProperty("rowsExported", rowsExported);
+		entity.setUnindexedProperty("inFlightTaskNames", inFlightTaskNames);
+		entity.setUnindexedProperty("inFlightEtas", inFlightEtas);
+		entity.setProperty("done", isDone());
+		datastore.put(txn, entity);
+	}
+
+	private static Key getKey(String id) {
+		return KeyFactory.createKey(KIND, id);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the prefix of the task names of the backfill's steps and windows
+	 */
+	public String getTaskNamePrefix() {
+		return "Backfill_" + id + "_" + createdMs + "_";
+	}
+
+	public String getConfigClassName() {
+		return configClassName;
+	}
+
+	public long getRowsPerSecond() {
+		return rowsPerSecond;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public void nextStep() {
+		step++;
+	}
+
+	/**
+	 * @return the in-flight windows' task names
+	 */
+	public List<String> getInFlightTaskNames() {
+		return inFlightTaskNames;
+	}
+
+	/**
+	 * Move windows that have been exported, or whose ETA is older than timedOutEtaMillis, out of flight.
+	 * 
+	 * @param exported the in-flight windows that have finished
+	 */
+	public void windowsFinished(Map<String, ExportCheckpoint.Exported> exported, long timedOutEtaMillis) {
+		for (int i = inFlightTaskNames.size() - 1; i >= 0; i--) {
+			ExportCheckpoint.Exported window = exported.get(inFlightTaskNames.get(i));
+			if (window != null) {
+				windowsExported++;
+				rowsExported += window.getRowCount();
+			}
+			else if (inFlightEtas.get(i) < timedOutEtaMillis) {
+				windowsTimedOut++;
+			}
+			else {
+				continue;
+			}
+			inFlightTaskNames.remove(i);
+			inFlightEtas.remove(i);
+		}
+	}
+
+	/**
+	 * @return the average number of rows of the windows that have been exported, or null if none have
+	 */
+	public Long getAverageRowsPerWindow() {
+		return windowsExported == 0 ? null : rowsExported / windowsExported;
+	}
+
+	/**
+	 * @return the number of windows that can still be enqueued without exceeding maxConcurrentWindows
+	 */
+	public int getFreeWindowSlots() {
+		long remaining = (endMs - nextWindowStartMs) / millisPerWindow;
+		return (int) Math.min(remaining, maxConcurrentWindows - inFlightTaskNames.size());
+	}
+
+	public long getNextWindowStartMs() {
+		return nextWindowStartMs;
+	}
+
+	public long getNextWindowEndMs() {
+		return nextWindowStartMs + millisPerWindow;
+	}
+
+	public void windowEnqueued(String taskName, long etaMillis) {
+		inFlightTaskNames.add(taskName);
+		inFlightEtas.add(etaMillis);
+		windowsEnqueued++;
+		nextWindowStartMs += millisPerWindow;
+	}
+
+	/**
+	 * The next window's task already existed, enqueued by an earlier attempt of the step, so it isn't tracked.
+	 */
+	public void windowSkipped() {
+		windowsSkipped++;
+		nextWindowStartMs += millisPerWindow;
+	}
+
+	public boolean isDone() {
+		return nextWindowStartMs >= endMs && inFlightTaskNames.isEmpty();
+	}
+
+	public String toJson() {
+		Map<String, Object> json = new LinkedHashMap<>();
+		json.put("backfillId", id);
+		json.put("logsExportConfiguration", configClassName);
+		json.put("startMs", startMs);
+		json.put("endMs", endMs);
+		json.put("rowsPerSecond", rowsPerSecond);
+		json.put("maxConcurrentWindows", maxConcurrentWindows);
+		json.put("windowsTotal", (endMs - startMs) / millisPerWindow);
+		json.put("windowsEnqueued", windowsEnqueued);
+		json.put("windowsInFlight", inFlightTaskNames.size());
+		json.put("windowsExported", windowsExported);
+		json.put("windowsTimedOut", windowsTimedOut);
+		json.put("windowsSkipped", windowsSkipped);
+		json.put("rowsExported", rowsExported);
+		json.put("nextWindowStartMs", nextWindowStartMs);
+		json.put("done", isDone());
+		return new Gson().toJson(json);
+	}
+}
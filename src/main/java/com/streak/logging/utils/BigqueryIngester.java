@@ -1,25 +1,41 @@
 package com.streak.logging.utils;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
 
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.UriTemplate;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.model.ErrorProto;
 import com.google.api.services.bigquery.model.Table;
-import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
 import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
 import com.google.api.services.bigquery.model.TableDataInsertAllResponse.InsertErrors;
 import com.google.api.services.bigquery.model.TableReference;
 import com.google.api.services.bigquery.model.TableSchema;
+import com.streak.logging.analysis.DeadLetterSink;
+import com.streak.logging.analysis.RetryPolicy;
+import com.streak.logging.analysis.TablePartitioning;
 
 public class BigqueryIngester {
 	private static final Logger log = Logger.getLogger("bqlogging");
+	private static final String INSERT_ALL_PATH = "projects/{projectId}/datasets/{datasetId}/tables/{tableId}/insertAll";
+	private static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
 
 	public static TableDataInsertAllResponse streamingRowIngestion(Map<String, Object> row, String tableId, String datasetId, String projectId, Bigquery bigquery) throws IOException {
 		return streamingRowIngestion(row, null, tableId, datasetId, projectId, bigquery);
@@ -33,6 +49,9 @@ public class BigqueryIngester {
 		return streamingRowIngestion(rows, null, tableId, datasetId, projectId, bigquery);
 	}
 
+	/**
+	 * Send rows to a table, retrying with {@link RetryPolicy#DEFAULT}. Rows that are finally rejected are only logged.
+	 */
 	public static TableDataInsertAllResponse streamingRowIngestion(List<Map<String, Object>> rows, List<String> insertIds, String tableId, String datasetId, String projectId, Bigquery bigquery) throws IOException {
 		assert insertIds == null || rows.size() == insertIds.size(); 
 	
@@ -42,54 +61,257 @@ public class BigqueryIngester {
 		
 		log.warning("streamingRowIngestion Number of Rows: " + rows.size());
 		
-		ArrayList<TableDataInsertAllRequest.Rows> rowList = new ArrayList<>();
+		return streamingBatchIngestion(toBatch(rows, insertIds), tableId, datasetId, projectId, bigquery, RetryPolicy.DEFAULT, null);
+	}
+	
+	/**
+	 * Serialize row maps into a new batch.
+	 * 
+	 * @param insertIds the insert id of each row, or null to let BigQuery generate them
+	 */
+	static InsertAllBatch toBatch(List<Map<String, Object>> rows, List<String> insertIds) {
+		InsertAllBatch batch = new InsertAllBatch();
+		Utf8JsonBuffer rowJson = new Utf8JsonBuffer(4096);
 		for (int i = 0; i < rows.size(); i++) {
-			Map<String, Object> row = rows.get(i);
-			String insertId = null;
-			if (insertIds != null) {
-				insertId = insertIds.get(i);
+			rowJson.reset();
+			rowJson.writeValue(rows.get(i));
+			batch.addRow(insertIds == null ? null : insertIds.get(i), rowJson);
+		}
+		return batch;
+	}
+	
+	/**
+	 * Send a serialized batch, retrying with {@link RetryPolicy#DEFAULT}. Rows that are finally rejected are only logged.
+	 */
+	public static TableDataInsertAllResponse streamingBatchIngestion(InsertAllBatch batch, String tableId, String datasetId, String projectId, Bigquery bigquery) throws IOException {
+		return streamingBatchIngestion(batch, tableId, datasetId, projectId, bigquery, RetryPolicy.DEFAULT, null);
+	}
+	
+	/**
+	 * Send a serialized batch as the body of a tabledata.insertAll request, without
+	 * building row maps or serializing the rows again.
+	 * 
+	 * Requests that fail with a transient error are sent again after a backoff. If 
+	 * BigQuery rejects some of the rows, only those whose errors are retryable are 
+	 * sent again, with their original insert ids. 
+	 * 
+	 * @param deadLetterSink receives the rows that are rejected for good, or null to only log them
+	 * @return the response for the rows of the batch, with the errors of every row that was rejected for good, 
+	 * indexed by its position in the batch, whichever attempt rejected it
+	 * @throws IOException if the request failed with an error that isn't retryable, or on the last attempt
+	 */
+	public static TableDataInsertAllResponse streamingBatchIngestion(InsertAllBatch batch, String tableId, String datasetId, String projectId, Bigquery bigquery,
+			RetryPolicy retryPolicy, DeadLetterSink deadLetterSink) throws IOException {
+		return streamingBatchIngestion(batch, tableId, datasetId, projectId, bigquery, retryPolicy, deadLetterSink, false);
+	}
+	
+	/**
+	 * Send a serialized batch like {@link #streamingBatchIngestion(InsertAllBatch, String, String, String, Bigquery, RetryPolicy, DeadLetterSink)}.
+	 * 
+	 * @param gzip whether to send the request body gzip encoded
+	 */
+	public static TableDataInsertAllResponse streamingBatchIngestion(InsertAllBatch batch, String tableId, String datasetId, String projectId, Bigquery bigquery,
+			RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, boolean gzip) throws IOException {
+		if (batch.isEmpty()) {
+			return null;
+		}
+		
+		InsertAllBatch pending = batch;
+		// The index in batch of each row of pending, null while pending is batch
+		List<Integer> batchIndexes = null;
+		List<InsertErrors> rejected = new ArrayList<>();
+		for (int attempt = 1; ; attempt++) {
+			TableDataInsertAllResponse response;
+			try {
+				response = sendBatch(pending, tableId, datasetId, projectId, bigquery, gzip);
+			}
+			catch (IOException e) {
+				ExportMetrics.insertAllRequestFailed(e instanceof HttpResponseException ? ((HttpResponseException) e).getStatusCode() : 0);
+				if (!retryPolicy.canRetry(attempt) || !isRetryable(e, retryPolicy)) {
+					throw e;
+				}
+				log.warning("insertAll attempt " + attempt + " failed, retrying: " + e.getMessage());
+				backoff(retryPolicy, attempt);
+				ExportMetrics.INSERT_ALL_RETRIES.increment();
+				continue;
 			}
 			
-			TableDataInsertAllRequest.Rows requestRow = new TableDataInsertAllRequest.Rows();
-			requestRow.setJson(row);
-			requestRow.setInsertId(insertId);
-			rowList.add(requestRow);
+			List<InsertErrors> insertErrors = response.getInsertErrors();
+			if (insertErrors == null || insertErrors.isEmpty()) {
+				return withErrors(response, rejected);
+			}
+			logInsertErrors(insertErrors, pending);
+			
+			InsertAllBatch retryBatch = null;
+			List<Integer> retryBatchIndexes = new ArrayList<>();
+			for (InsertErrors errorSet : insertErrors) {
+				if (errorSet.getIndex() == null) {
+					rejected.add(errorSet);
+					continue;
+				}
+				int rowIndex = errorSet.getIndex().intValue();
+				int batchIndex = batchIndexes == null ? rowIndex : batchIndexes.get(rowIndex);
+				if (retryPolicy.canRetry(attempt) && isRetryable(errorSet.getErrors(), retryPolicy)) {
+					if (retryBatch == null) {
+						retryBatch = new InsertAllBatch();
+					}
+					retryBatch.addRow(pending, rowIndex);
+					retryBatchIndexes.add(batchIndex);
+				}
+				else {
+					rejected.add(new InsertErrors().setIndex((long) batchIndex).setErrors(errorSet.getErrors()));
+					if (deadLetterSink != null) {
+						deadLetterSink.rejectedRow(projectId, datasetId, tableId, pending.getInsertIds().get(rowIndex), pending.getRowJson(rowIndex), 
+								errorSet.getErrors());
+					}
+				}
+			}
+			
+			if (retryBatch == null) {
+				return withErrors(response, rejected);
+			}
+			log.warning("Retrying " + retryBatch.getRowCount() + " of " + pending.getRowCount() + " rows after attempt " + attempt);
+			backoff(retryPolicy, attempt);
+			ExportMetrics.INSERT_ALL_RETRIES.increment();
+			pending = retryBatch;
+			batchIndexes = retryBatchIndexes;
 		}
-
-		TableDataInsertAllRequest content = new TableDataInsertAllRequest().setRows(rowList);
-		TableDataInsertAllResponse response = bigquery.tabledata().insertAll(projectId, datasetId, tableId, content).execute();
-		 
-		if (response.getInsertErrors() != null && response.getInsertErrors().size() > 0) {
-			logInsertErrors(response.getInsertErrors(), rows);
+	}
+	
+	/**
+	 * @return the last response of a batch, with the errors of the batch's rejected rows instead of its own
+	 */
+	private static TableDataInsertAllResponse withErrors(TableDataInsertAllResponse response, List<InsertErrors> rejected) {
+		response.setInsertErrors(rejected.isEmpty() ? null : rejected);
+		return response;
+	}
+	
+	private static TableDataInsertAllResponse sendBatch(InsertAllBatch batch, String tableId, String datasetId, String projectId, Bigquery bigquery, 
+			boolean gzip) throws IOException {
+		batch.finish();
+		
+		log.warning("streamingBatchIngestion Number of Rows: " + batch.getRowCount() + ", bytes: " + batch.size());
+		ExportMetrics.BATCH_ROWS.observe(batch.getRowCount());
+		ExportMetrics.BATCH_BYTES.observe(batch.size());
+		
+		Map<String, Object> pathParameters = new HashMap<>();
+		pathParameters.put("projectId", projectId);
+		pathParameters.put("datasetId", datasetId);
+		pathParameters.put("tableId", tableId);
+		GenericUrl url = new GenericUrl(UriTemplate.expand(bigquery.getBaseUrl(), INSERT_ALL_PATH, pathParameters, true));
+		
+		HttpRequest request;
+		if (gzip) {
+			byte[] body = gzip(batch);
+			ExportMetrics.BATCH_GZIP_BYTES.observe(body.length);
+			request = bigquery.getRequestFactory().buildPostRequest(url, new ByteArrayContent(JSON_CONTENT_TYPE, body));
+			request.getHeaders().setContentEncoding("gzip");
 		}
+		else {
+			request = bigquery.getRequestFactory().buildPostRequest(url, new ByteArrayContent(JSON_CONTENT_TYPE, batch.getBody(), 0, batch.size()));
+		}
+		request.setParser(bigquery.getObjectParser());
 		
-		return response;
+		long startMillis = System.currentTimeMillis();
+		try {
+			HttpResponse httpResponse = GoogleJsonResponseException.execute(bigquery.getJsonFactory(), request);
+			try {
+				return httpResponse.parseAs(TableDataInsertAllResponse.class);
+			}
+			finally {
+				httpResponse.disconnect();
+			}
+		}
+		finally {
+			ExportMetrics.INSERT_ALL_MILLIS.observe(System.currentTimeMillis() - startMillis);
+		}
+	}
+	
+	/**
+	 * Compress the body up front rather than with an HttpEncoding, so the request has a content length.
+	 */
+	private static byte[] gzip(InsertAllBatch batch) throws IOException {
+		// JSON log rows usually compress at least 4 times
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(512, batch.size() / 4));
+		GZIPOutputStream gzipStream = new GZIPOutputStream(compressed, 8192);
+		gzipStream.write(batch.getBody(), 0, batch.size());
+		gzipStream.close();
+		return compressed.toByteArray();
 	}
 	
-	private static void logInsertErrors(List<InsertErrors> insertErrors, List<Map<String, Object>> rows) {
+	private static boolean isRetryable(IOException e, RetryPolicy retryPolicy) {
+		if (e instanceof GoogleJsonResponseException) {
+			GoogleJsonResponseException jsonException = (GoogleJsonResponseException) e;
+			if (retryPolicy.isRetryableStatusCode(jsonException.getStatusCode())) {
+				return true;
+			}
+			GoogleJsonError details = jsonException.getDetails();
+			if (details == null || details.getErrors() == null) {
+				return false;
+			}
+			for (GoogleJsonError.ErrorInfo errorInfo : details.getErrors()) {
+				if (!retryPolicy.isRetryableReason(errorInfo.getReason())) {
+					return false;
+				}
+			}
+			return !details.getErrors().isEmpty();
+		}
+		if (e instanceof HttpResponseException) {
+			return retryPolicy.isRetryableStatusCode(((HttpResponseException) e).getStatusCode());
+		}
+		// Connection failures and timeouts, but not an interrupted request thread
+		return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+	}
+	
+	private static boolean isRetryable(List<ErrorProto> errors, RetryPolicy retryPolicy) {
+		if (errors == null || errors.isEmpty()) {
+			return false;
+		}
+		for (ErrorProto error : errors) {
+			if (!retryPolicy.isRetryableReason(error.getReason())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static void backoff(RetryPolicy retryPolicy, int attempt) throws IOException {
+		try {
+			Thread.sleep(retryPolicy.getBackoffMillis(attempt));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to retry insertAll");
+		}
+	}
+	
+	private static void logInsertErrors(List<InsertErrors> insertErrors, InsertAllBatch batch) {
 		log.warning(insertErrors.size() + " insert errors");
 		
 		Map<String, Integer> reasonCounts = new HashMap<String, Integer>();
-		int i = 0;
 		for (InsertErrors errorSet : insertErrors) {
 			for (ErrorProto singleError : errorSet.getErrors()) {
-				String reason = singleError.getReason() + "~" + singleError.getMessage();
-				if (reasonCounts.get(reason) == null) {
-					reasonCounts.put(reason, 0);
-				}
-				reasonCounts.put(reason, reasonCounts.get(reason) + 1);
+				countReason(reasonCounts, singleError);
+				ExportMetrics.insertAllRowRejected(singleError.getReason());
 				
-				if ("Maximum allowed row size exceeded".equals(singleError.getMessage())) {
-					Map<String, Object> row = rows.get(i);
-					for (String k : row.keySet()) {
-						log.warning(k + ": " + (row.get(k) == null ? 0 : row.get(k).toString().length()));
-					}
-					log.warning("Path: " + row.get("path"));
+				if ("Maximum allowed row size exceeded".equals(singleError.getMessage()) && errorSet.getIndex() != null) {
+					int i = errorSet.getIndex().intValue();
+					log.warning("insertId: " + batch.getInsertIds().get(i) + ", bytes: " + batch.getRowSize(i));
 				}
 			}
-			i++;
 		}
-		
+		logReasonCounts(reasonCounts);
+	}
+	
+	private static void countReason(Map<String, Integer> reasonCounts, ErrorProto singleError) {
+		String reason = singleError.getReason() + "~" + singleError.getMessage();
+		if (reasonCounts.get(reason) == null) {
+			reasonCounts.put(reason, 0);
+		}
+		reasonCounts.put(reason, reasonCounts.get(reason) + 1);
+	}
+	
+	private static void logReasonCounts(Map<String, Integer> reasonCounts) {
 		StringBuilder sb = new StringBuilder();
 		sb.append("InsertErrors --------------");
 		for (String k : reasonCounts.keySet()) {
@@ -99,6 +321,14 @@ public class BigqueryIngester {
 	}
 
 	public static Table createTable(String projectId, String datasetId, String tableId, TableSchema schema, Bigquery bigquery) throws IOException {
+		return createTable(projectId, datasetId, tableId, schema, null, bigquery);
+	}
+
+	/**
+	 * @param partitioning how to partition and cluster the table, or null for a plain table
+	 */
+	public static Table createTable(String projectId, String datasetId, String tableId, TableSchema schema, 
+			TablePartitioning partitioning, Bigquery bigquery) throws IOException {
 		Table table = new Table();
 
 		TableReference tableRef = new TableReference();
@@ -108,6 +338,23 @@ public class BigqueryIngester {
 		table.setTableReference(tableRef);
 		table.setFriendlyName(tableId);
 		table.setSchema(schema);
+		if (partitioning != null) {
+			// Set as plain JSON, this version of the client has no model classes for them
+			Map<String, Object> timePartitioning = new LinkedHashMap<>();
+			timePartitioning.put("type", "DAY");
+			if (partitioning.getField() != null) {
+				timePartitioning.put("field", partitioning.getField());
+			}
+			if (partitioning.getExpirationMs() != null) {
+				timePartitioning.put("expirationMs", partitioning.getExpirationMs().toString());
+			}
+			table.set("timePartitioning", timePartitioning);
+			if (!partitioning.getClusteringFields().isEmpty()) {
+				Map<String, Object> clustering = new LinkedHashMap<>();
+				clustering.put("fields", partitioning.getClusteringFields());
+				table.set("clustering", clustering);
+			}
+		}
 
 		try {
 			return bigquery.tables().insert(projectId, datasetId, table).execute();
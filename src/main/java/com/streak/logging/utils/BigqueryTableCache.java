@@ -0,0 +1,257 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.streak.logging.analysis.TablePartitioning;
+
+/**
+ * Makes sure the table an export streams into exists and has the columns of
+ * its schema, so that exports don't depend on CreateLoggingTableServlet
+ * having created the table ahead of time.
+ *
+ * A table is only looked up in BigQuery when it hasn't been seen with the
+ * same schema hash recently: tables are remembered in memory for a minute
+ * and in memcache for an hour. A missing table is created, and columns the
+ * table lacks are added to it. BigQuery can't change or remove columns, so a
+ * column whose type changed is only logged, and the rows that don't fit are
+ * rejected by insertAll as before.
+ *
+ * Whether the table is partitioned is remembered with it, so that exports
+ * into a table created before partitioning was configured can stream into
+ * the table itself instead of partitions it doesn't have.
+ *
+ * Outside of App Engine (e.g. in a local harness) only the memory cache is used.
+ */
+public class BigqueryTableCache {
+	private static final Logger log = Logger.getLogger("bqlogging");
+	
+	private static final String KEY_PREFIX = "bigqueryTable_";
+	private static final long LOCAL_TTL_MILLIS = 60 * 1000;
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 60 * 60;
+	
+	// A few tables per configuration and period, cleared rather than evicted when old periods pile up
+	private static final int MAX_LOCAL_TABLES = 1000;
+	
+	private static final ConcurrentMap<String, VerifiedTable> verifiedTables = new ConcurrentHashMap<>();
+
+	/**
+	 * Create the table or add the columns it lacks, unless it was verified recently.
+	 * Failures are logged and ignored, the export then fails the way it did without this check.
+	 */
+	public static void ensureTable(String projectId, String datasetId, String tableId, RowPlan plan, Bigquery bigquery) {
+		ensureTable(projectId, datasetId, tableId, plan, null, bigquery);
+	}
+
+	/**
+	 * Like {@link #ensureTable(String, String, String, RowPlan, Bigquery)}, creating a missing table
+	 * with the given partitioning. A partition decorator on the table id is ignored.
+	 * 
+	 * @return false if the table isn't partitioned by time, so partition decorators would be rejected, 
+	 * true if it is or if it couldn't be checked
+	 */
+	public static boolean ensureTable(String projectId, String datasetId, String tableId, RowPlan plan, 
+			TablePartitioning partitioning, Bigquery bigquery) {
+		tableId = stripDecorator(tableId);
+		String key = getKey(projectId, datasetId, tableId, plan.getSchemaHash());
+		VerifiedTable verified = verifiedTables.get(key);
+		long now = System.currentTimeMillis();
+		if (verified != null && verified.verifiedUntilMillis > now) {
+			return verified.partitioned;
+		}
+		
+		Boolean partitioned = getVerifiedInMemcache(key);
+		if (partitioned == null) {
+			try {
+				partitioned = createOrUpdate(projectId, datasetId, tableId, plan.getSchema(), partitioning, bigquery);
+			}
+			catch (IOException e) {
+				log.warning("Couldn't check table " + projectId + ":" + datasetId + "." + tableId + ": " + e.getMessage());
+				return true;
+			}
+			markVerifiedInMemcache(key, partitioned);
+		}
+		
+		if (verifiedTables.size() > MAX_LOCAL_TABLES) {
+			verifiedTables.clear();
+		}
+		verifiedTables.put(key, new VerifiedTable(now + LOCAL_TTL_MILLIS, partitioned));
+		return partitioned;
+	}
+
+	/**
+	 * Forget the table, e.g. after an insertAll found it missing, so the next export checks it again.
+	 */
+	public static void invalidate(String projectId, String datasetId, String tableId, RowPlan plan) {
+		tableId = stripDecorator(tableId);
+		String key = getKey(projectId, datasetId, tableId, plan.getSchemaHash());
+		verifiedTables.remove(key);
+		if (ApiProxy.getCurrentEnvironment() == null) {
+			return;
+		}
+		try {
+			getMemcache().delete(key);
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't forget table " + key + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return whether the table is partitioned by time
+	 */
+	private static boolean createOrUpdate(String projectId, String datasetId, String tableId, TableSchema schema, 
+			TablePartitioning partitioning, Bigquery bigquery) throws IOException {
+		Table table;
+		try {
+			table = bigquery.tables().get(projectId, datasetId, tableId).execute();
+		}
+		catch (GoogleJsonResponseException e) {
+			if (e.getStatusCode() != 404) {
+				throw e;
+			}
+			table = null;
+		}
+		
+		if (table == null) {
+			Table created = BigqueryIngester.createTable(projectId, datasetId, tableId, schema, partitioning, bigquery);
+			if (created != null) {
+				log.info("Created table " + projectId + ":" + datasetId + "." + tableId);
+				return partitioning != null;
+			}
+			// Another task created it meanwhile, possibly with an older schema
+			table = bigquery.tables().get(projectId, datasetId, tableId).execute();
+		}
+		
+		if (table.getSchema() == null) {
+			table.setSchema(new TableSchema().setFields(new ArrayList<TableFieldSchema>()));
+		}
+		String tableName = projectId + ":" + datasetId + "." + tableId;
+		boolean partitioned = table.get("timePartitioning") != null;
+		if (partitioning != null && !partitioned) {
+			log.warning("Table " + tableName + " isn't partitioned, it was created before " + partitioning 
+					+ " was configured. Rows are streamed into the table without partition decorators.");
+		}
+		if (addMissingFields(table.getSchema().getFields(), schema.getFields(), tableName)) {
+			bigquery.tables().update(projectId, datasetId, tableId, table).execute();
+			log.info("Added columns to table " + tableName);
+		}
+		return partitioned;
+	}
+
+	/**
+	 * Add the fields of the expected schema that the table lacks, recursing into records.
+	 * 
+	 * @return whether any field was added
+	 */
+	private static boolean addMissingFields(List<TableFieldSchema> tableFields, List<TableFieldSchema> expectedFields, String path) {
+		boolean added = false;
+		for (TableFieldSchema expected : expectedFields) {
+			TableFieldSchema existing = null;
+			for (TableFieldSchema field : tableFields) {
+				if (field.getName().equalsIgnoreCase(expected.getName())) {
+					existing = field;
+					break;
+				}
+			}
+			
+			if (existing == null) {
+				// New columns can't be required, rows exported before them have no value
+				TableFieldSchema field = expected.clone();
+				if ("REQUIRED".equals(field.getMode())) {
+					field.setMode("NULLABLE");
+				}
+				tableFields.add(field);
+				added = true;
+			}
+			else if (!existing.getType().equalsIgnoreCase(expected.getType())) {
+				log.warning("Column " + path + "." + expected.getName() + " is " + existing.getType() + ", exporters write " + expected.getType());
+			}
+			else if (expected.getFields() != null && existing.getFields() != null) {
+				added |= addMissingFields(existing.getFields(), expected.getFields(), path + "." + expected.getName());
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @return whether the table is partitioned, or null if it wasn't verified recently
+	 */
+	private static Boolean getVerifiedInMemcache(String key) {
+		if (ApiProxy.getCurrentEnvironment() == null) {
+			return null;
+		}
+		try {
+			return (Boolean) getMemcache().get(key);
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't look up table " + key + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static void markVerifiedInMemcache(String key, boolean partitioned) {
+		if (ApiProxy.getCurrentEnvironment() == null) {
+			return;
+		}
+		try {
+			getMemcache().put(key, partitioned, Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECONDS));
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't remember table " + key + ": " + e.getMessage());
+		}
+	}
+
+	private static String stripDecorator(String tableId) {
+		int decorator = tableId.indexOf('$');
+		return decorator < 0 ? tableId : tableId.substring(0, decorator);
+	}
+
+	private static String getKey(String projectId, String datasetId, String tableId, String schemaHash) {
+		return KEY_PREFIX + projectId + ":" + datasetId + "." + tableId + "_" + schemaHash;
+	}
+
+	private static MemcacheService getMemcache() {
+		return MemcacheServiceFactory.getMemcacheService(AnalysisConstants.MEMCACHE_NAMESPACE);
+	}
+
+	private static final class VerifiedTable {
+		final long verifiedUntilMillis;
+		final boolean partitioned;
+
+		VerifiedTable(long verifiedUntilMillis, boolean partitioned) {
+			this.verifiedUntilMillis = verifiedUntilMillis;
+			this.partitioned = partitioned;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.streak.logging.analysis.BatchPolicy;
+import com.streak.logging.analysis.DeadLetterSink;
+import com.streak.logging.analysis.RetryPolicy;
+
+/**
+ * Collects rows that an application offers one at a time, e.g. analytics
+ * events from request handlers, and sends them to BigQuery in batches from
+ * background threads, so handlers don't wait for BigQuery and a batch of
+ * rows costs one insertAll request.
+ *
+ * Rows are serialized when they are offered and grouped per table. A table's
+ * batch is sent when the {@link BatchPolicy} says it is full, or by the
+ * flusher thread once it has lingered for the policy's maxLingerMillis.
+ *
+ * At most maxBufferedRows rows are held, counting rows that are being sent.
+ * When the buffer is full the {@link OverflowPolicy} decides whether offer
+ * drops the row or waits for room.
+ *
+ * A failed batch is logged and counted in {@link ExportMetrics#BUFFERED_ROWS_FAILED}
+ * after the retry policy gives up, rows rejected for good go to the dead
+ * letter sink. Rows still buffered are lost if the instance shuts down
+ * without {@link #close()}.
+ *
+ * Create one ingester per dataset and share it for the lifetime of the
+ * instance. On App Engine the default threads are background threads, which
+ * are only available on manual and basic scaling instances.
+ */
+public class BufferedBigqueryIngester {
+	private static final Logger log = Logger.getLogger("bqlogging");
+
+	public static final int DEFAULT_MAX_BUFFERED_ROWS = 100000;
+	public static final int DEFAULT_MAX_CONCURRENT_SENDS = 4;
+
+	/**
+	 * What {@link BufferedBigqueryIngester#offer} does when the buffer is full.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the offered row and return false. */
+		DROP,
+		/** Wait until sent batches make room for the row. */
+		BLOCK
+	}
+
+	private final Bigquery bigquery;
+	private final String projectId;
+	private final String datasetId;
+	private final BatchPolicy batchPolicy;
+	private final int maxBufferedRows;
+	private final OverflowPolicy overflowPolicy;
+	private final RetryPolicy retryPolicy;
+	private final DeadLetterSink deadLetterSink;
+	private final ExecutorService senders;
+	private final ScheduledExecutorService flusher;
+	private final ConcurrentMap<String, TableBuffer> tables = new ConcurrentHashMap<>();
+
+	private final Object bufferedLock = new Object();
+	private int bufferedRows;
+	private boolean closed;
+
+	public BufferedBigqueryIngester(Bigquery bigquery, String projectId, String datasetId) {
+		this(bigquery, projectId, datasetId, BatchPolicy.DEFAULT, DEFAULT_MAX_BUFFERED_ROWS, OverflowPolicy.DROP, 
+				DEFAULT_MAX_CONCURRENT_SENDS, RetryPolicy.DEFAULT, null, AnalysisUtility.getBackgroundThreadFactory());
+	}
+
+	/**
+	 * @param batchPolicy when a table's batch is sent
+	 * @param maxBufferedRows the maximum number of rows held, including rows that are being sent
+	 * @param overflowPolicy what to do with rows offered while the buffer is full
+	 * @param maxConcurrentSends the number of insertAll requests sent at the same time
+	 * @param deadLetterSink receives rows that are rejected for good, or null to only log them
+	 * @param threadFactory creates the flusher and sender threads
+	 */
+	public BufferedBigqueryIngester(Bigquery bigquery, String projectId, String datasetId, BatchPolicy batchPolicy, 
+			int maxBufferedRows, OverflowPolicy overflowPolicy, int maxConcurrentSends, RetryPolicy retryPolicy, 
+			DeadLetterSink deadLetterSink, ThreadFactory threadFactory) {
+		if (maxBufferedRows < 1 || maxConcurrentSends < 1) {
+			throw new IllegalArgumentException("Invalid buffered ingester: maxBufferedRows=" + maxBufferedRows 
+					+ ", maxConcurrentSends=" + maxConcurrentSends);
+		}
+		this.bigquery = bigquery;
+		this.projectId = projectId;
+		this.datasetId = datasetId;
+		this.batchPolicy = batchPolicy;
+		this.maxBufferedRows = maxBufferedRows;
+		this.overflowPolicy = overflowPolicy;
+		this.retryPolicy = retryPolicy;
+		this.deadLetterSink = deadLetterSink;
+		this.senders = Executors.newFixedThreadPool(maxConcurrentSends, threadFactory);
+		
+		if (batchPolicy.getMaxLingerMillis() > 0) {
+			long intervalMillis = Math.max(100, Math.min(1000, batchPolicy.getMaxLingerMillis() / 2));
+			flusher = Executors.newSingleThreadScheduledExecutor(threadFactory);
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					sendLingeredBatches();
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		}
+		else {
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Buffer a row to be sent to a table.
+	 * 
+	 * @param insertId the row's insert id, or null to let BigQuery generate one
+	 * @return false if the row was dropped because the buffer is full or the ingester is closed
+	 * @throws InterruptedIOException if the thread is interrupted while waiting for room
+	 */
+	public boolean offer(String tableId, Map<String, Object> row, String insertId) throws InterruptedIOException {
+		ExportMetrics.BUFFERED_ROWS_OFFERED.increment();
+		if (!reserveRow()) {
+			ExportMetrics.BUFFERED_ROWS_DROPPED.increment();
+			return false;
+		}
+		
+		TableBuffer table = getTableBuffer(tableId);
+		try {
+			synchronized (table) {
+				if (isClosed()) {
+					// close() may already have flushed this table
+					ExportMetrics.BUFFERED_ROWS_DROPPED.increment();
+					releaseRows(1);
+					return false;
+				}
+				table.rowJson.reset();
+				table.rowJson.writeValue(row);
+				if (batchPolicy.isFull(table.batch.sizeWithRow(insertId, table.rowJson), table.batch.getRowCount())) {
+					// Sent before the table is unlocked, so close() can't shut down the senders in between
+					send(tableId, table.takeBatch());
+				}
+				if (table.batch.isEmpty()) {
+					table.batchStartMillis = System.currentTimeMillis();
+				}
+				table.batch.addRow(insertId, table.rowJson);
+			}
+		}
+		catch (RuntimeException e) {
+			// The row couldn't be serialized
+			releaseRows(1);
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of rows that are buffered or being sent
+	 */
+	public int getBufferedRowCount() {
+		synchronized (bufferedLock) {
+			return bufferedRows;
+		}
+	}
+
+	/**
+	 * Send the batches of every table now, without waiting for them.
+	 */
+	public void flush() {
+		for (Map.Entry<String, TableBuffer> entry : tables.entrySet()) {
+			InsertAllBatch batch;
+			synchronized (entry.getValue()) {
+				batch = entry.getValue().takeBatch();
+			}
+			if (batch != null) {
+				send(entry.getKey(), batch);
+			}
+		}
+	}
+
+	/**
+	 * Send every buffered row and wait until they have been sent, then stop the threads.
+	 * Rows offered after close is called are dropped.
+	 */
+	public void close() throws IOException {
+		synchronized (bufferedLock) {
+			closed = true;
+			bufferedLock.notifyAll();
+		}
+		if (flusher != null) {
+			flusher.shutdownNow();
+		}
+		flush();
+		senders.shutdown();
+		try {
+			while (!senders.awaitTermination(1, TimeUnit.SECONDS)) {
+				log.info("Waiting for " + getBufferedRowCount() + " buffered rows to be sent");
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while sending buffered rows");
+		}
+	}
+
+	private boolean reserveRow() throws InterruptedIOException {
+		synchronized (bufferedLock) {
+			while (!closed && bufferedRows >= maxBufferedRows) {
+				if (overflowPolicy == OverflowPolicy.DROP) {
+					return false;
+				}
+				try {
+					bufferedLock.wait();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for room in the buffer");
+				}
+			}
+			if (closed) {
+				return false;
+			}
+			bufferedRows++;
+			return true;
+		}
+	}
+
+	private boolean isClosed() {
+		synchronized (bufferedLock) {
+			return closed;
+		}
+	}
+
+	private void releaseRows(int rowCount) {
+		synchronized (bufferedLock) {
+			bufferedRows -= rowCount;
+			bufferedLock.notifyAll();
+		}
+	}
+
+	private TableBuffer getTableBuffer(String tableId) {
+		TableBuffer table = tables.get(tableId);
+		if (table == null) {
+			table = new TableBuffer();
+			TableBuffer existing = tables.putIfAbsent(tableId, table);
+			if (existing != null) {
+				table = existing;
+			}
+		}
+		return table;
+	}
+
+	private void sendLingeredBatches() {
+		try {
+			long now = System.currentTimeMillis();
+			List<String> tableIds = new ArrayList<>();
+			List<InsertAllBatch> batches = new ArrayList<>();
+			for (Map.Entry<String, TableBuffer> entry : tables.entrySet()) {
+				TableBuffer table = entry.getValue();
+				synchronized (table) {
+					if (!table.batch.isEmpty() && batchPolicy.hasLingered(table.batchStartMillis, now)) {
+						tableIds.add(entry.getKey());
+						batches.add(table.takeBatch());
+					}
+				}
+			}
+			for (int i = 0; i < batches.size(); i++) {
+				send(tableIds.get(i), batches.get(i));
+			}
+		}
+		catch (RuntimeException e) {
+			// An exception would cancel the scheduled flushes
+			log.log(Level.SEVERE, "Flushing buffered rows failed", e);
+		}
+	}
+
+	private void send(final String tableId, final InsertAllBatch batch) {
+		Runnable sender = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BigqueryIngester.streamingBatchIngestion(batch, tableId, datasetId, projectId, bigquery, retryPolicy, deadLetterSink, 
+							batchPolicy.isGzip());
+				}
+				catch (IOException | RuntimeException e) {
+					ExportMetrics.BUFFERED_ROWS_FAILED.add(batch.getRowCount());
+					log.log(Level.SEVERE, "Dropping " + batch.getRowCount() + " buffered rows for " + tableId, e);
+				}
+				finally {
+					releaseRows(batch.getRowCount());
+				}
+			}
+		};
+		try {
+			senders.execute(sender);
+		}
+		catch (RejectedExecutionException e) {
+			// Offered while closing
+			ExportMetrics.BUFFERED_ROWS_DROPPED.add(batch.getRowCount());
+			log.warning("Dropping " + batch.getRowCount() + " rows for " + tableId + " offered after close");
+			releaseRows(batch.getRowCount());
+		}
+	}
+
+	/**
+	 * The batch being filled for one table.
+	 */
+	private static class TableBuffer {
+		final Utf8JsonBuffer rowJson = new Utf8JsonBuffer(1024);
+		InsertAllBatch batch = new InsertAllBatch(16 * 1024);
+		long batchStartMillis;
+
+		/**
+		 * @return the batch, or null if it is empty, replaced by an empty one
+		 */
+		InsertAllBatch takeBatch() {
+			if (batch.isEmpty()) {
+				return null;
+			}
+			InsertAllBatch full = batch;
+			batch = new InsertAllBatch(16 * 1024);
+			return full;
+		}
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+/**
+ * How far an export task got through its window: the LogService offset of
+ * the last log whose row has been sent to BigQuery, and the number of rows
+ * sent up to and including it.
+ *
+ * Checkpoints are kept in memcache under the task name. A retried task
+ * resumes the LogQuery from the offset instead of re-reading its whole
+ * window. Memcache may evict a checkpoint, in which case the task simply
+ * starts over and insert ids keep the rows from being duplicated.
+ */
+@SuppressWarnings("serial")
+public class ExportCheckpoint implements Serializable {
+	private static final Logger log = Logger.getLogger("bqlogging");
+	
+	private static final String KEY_PREFIX = "exportCheckpoint_";
+	
+	// Task queue retries of a window normally happen well within this
+	private static final int EXPIRATION_SECONDS = 24 * 60 * 60;
+	
+	private static final String EXPORTED_KEY_PREFIX = "exportedWindow_";
+	
+	// As long as task names are kept, so a backfill sees windows that were already exported
+	private static final int EXPORTED_EXPIRATION_SECONDS = 7 * 24 * 60 * 60;
+
+	private final String offset;
+	private final int rowCount;
+	private final long cutMs;
+
+	/**
+	 * @param offset the RequestLogs offset of the last log that was sent
+	 * @param rowCount the number of rows sent so far
+	 * @param cutMs where the task cut its window for sharding, or the start of the window if it hasn't
+	 */
+	public ExportCheckpoint(String offset, int rowCount, long cutMs) {
+		this.offset = offset;
+		this.rowCount = rowCount;
+		this.cutMs = cutMs;
+	}
+
+	public String getOffset() {
+		return offset;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public long getCutMs() {
+		return cutMs;
+	}
+
+	/**
+	 * @return the checkpoint saved by a previous attempt of the task, or null if there is none
+	 */
+	public static ExportCheckpoint load(String taskName) {
+		try {
+			return (ExportCheckpoint) getMemcache().get(KEY_PREFIX + taskName);
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't load checkpoint for " + taskName + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Save the checkpoint, failures are logged and ignored since a lost checkpoint only costs a longer retry.
+	 */
+	public void save(String taskName) {
+		try {
+			getMemcache().put(KEY_PREFIX + taskName, this, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't save checkpoint for " + taskName + ": " + e.getMessage());
+		}
+	}
+
+	public static void clear(String taskName) {
+		try {
+			getMemcache().delete(KEY_PREFIX + taskName);
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't clear checkpoint for " + taskName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Record that a task exported its whole window, failures are logged and ignored.
+	 * 
+	 * @param rowCount the number of rows the task exported, including those of earlier attempts
+	 * @param exportMillis how long the last attempt of the task took
+	 */
+	public static void markExported(String taskName, int rowCount, long exportMillis) {
+		try {
+			getMemcache().put(EXPORTED_KEY_PREFIX + taskName, new Exported(rowCount, exportMillis), Expiration.byDeltaSeconds(EXPORTED_EXPIRATION_SECONDS));
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't mark " + taskName + " as exported: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return how each of the given tasks that have finished exported its window, tasks that haven't are left out
+	 */
+	public static Map<String, Exported> getExported(Collection<String> taskNames) {
+		List<String> keys = new ArrayList<>(taskNames.size());
+		for (String taskName : taskNames) {
+			keys.add(EXPORTED_KEY_PREFIX + taskName);
+		}
+		Map<String, Exported> exported = new HashMap<>();
+		try {
+			for (Map.Entry<String, Object> entry : getMemcache().getAll(keys).entrySet()) {
+				exported.put(entry.getKey().substring(EXPORTED_KEY_PREFIX.length()), (Exported) entry.getValue());
+			}
+		}
+		catch (MemcacheServiceException e) {
+			log.warning("Couldn't load exported windows: " + e.getMessage());
+		}
+		return exported;
+	}
+
+	/**
+	 * The outcome of a task that exported its whole window.
+	 */
+	public static class Exported implements Serializable {
+		private final int rowCount;
+		private final long exportMillis;
+
+		public Exported(int rowCount, long exportMillis) {
+			this.rowCount = rowCount;
+			this.exportMillis = exportMillis;
+		}
+
+		public int getRowCount() {
+			return rowCount;
+		}
+
+		public long getExportMillis() {
+			return exportMillis;
+		}
+	}
+
+	private static MemcacheService getMemcache() {
+		return MemcacheServiceFactory.getMemcacheService(AnalysisConstants.MEMCACHE_NAMESPACE);
+	}
+
+	@Override
+	public String toString() {
+		return "ExportCheckpoint[offset=" + offset + ", rowCount=" + rowCount + ", cutMs=" + cutMs + "]";
+	}
+}
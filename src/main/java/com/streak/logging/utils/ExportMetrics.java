@@ -0,0 +1,98 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import com.streak.logging.utils.MetricsRegistry.Counter;
+import com.streak.logging.utils.MetricsRegistry.Histogram;
+
+/**
+ * The metrics of the log export path, reported to {@link MetricsRegistry#getDefault()}.
+ */
+public class ExportMetrics {
+	private static final long[] MILLIS_BUCKETS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 600000 };
+	private static final long[] MICROS_BUCKETS = { 1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 5000, 25000 };
+	private static final long[] ROWS_BUCKETS = { 1, 10, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+	private static final long[] BYTES_BUCKETS = { 1000, 10000, 100000, 250000, 500000, 1000000, 2500000, 5000000, 10000000 };
+	
+	// Timing every exporter call would cost more than some exporters, so only every 64th row is timed
+	public static final int EXPORTER_SAMPLE_MASK = 63;
+
+	private static final MetricsRegistry registry = MetricsRegistry.getDefault();
+
+	public static final Histogram LOG_FETCH_MILLIS = registry.histogram("mache_logservice_fetch_millis",
+			"Time an export task spent waiting for the LogService", MILLIS_BUCKETS);
+	
+	public static final Counter LOGS_READ = registry.counter("mache_logs_read_total",
+			"Logs read from the LogService");
+	
+	public static final Counter ROWS_SKIPPED = registry.counter("mache_rows_skipped_total",
+			"Logs skipped by LogsFieldExporterSet.skipLog");
+	
+	public static final Counter ROWS_EXPORTED = registry.counter("mache_rows_exported_total",
+			"Rows handed to BigQuery by export tasks");
+	
+	public static final Histogram BATCH_ROWS = registry.histogram("mache_batch_rows",
+			"Rows per insertAll request", ROWS_BUCKETS);
+	
+	public static final Histogram BATCH_BYTES = registry.histogram("mache_batch_bytes",
+			"Bytes per insertAll request body", BYTES_BUCKETS);
+	
+	public static final Histogram BATCH_GZIP_BYTES = registry.histogram("mache_batch_gzip_bytes",
+			"Bytes per gzip encoded insertAll request body", BYTES_BUCKETS);
+	
+	public static final Histogram INSERT_ALL_MILLIS = registry.histogram("mache_insertall_millis",
+			"insertAll request latency, including failed requests", MILLIS_BUCKETS);
+	
+	public static final Counter INSERT_ALL_RETRIES = registry.counter("mache_insertall_retries_total",
+			"insertAll requests sent again after a failed request or rejected rows");
+	
+	public static final Histogram EXPORT_LAG_MILLIS = registry.histogram("mache_export_lag_millis",
+			"Time from the end of a window until its export task finished", MILLIS_BUCKETS);
+
+	public static final Counter BUFFERED_ROWS_OFFERED = registry.counter("mache_buffered_rows_offered_total",
+			"Rows offered to a BufferedBigqueryIngester");
+	
+	public static final Counter BUFFERED_ROWS_DROPPED = registry.counter("mache_buffered_rows_dropped_total",
+			"Rows dropped because a BufferedBigqueryIngester was full");
+	
+	public static final Counter BUFFERED_ROWS_FAILED = registry.counter("mache_buffered_rows_failed_total",
+			"Rows of buffered batches whose insertAll request failed after all retries");
+	
+	public static final Counter TASKS_ENQUEUED = registry.counter("mache_tasks_enqueued_total",
+			"Window and shard tasks added to the task queue");
+	
+	public static final Counter TASKS_ALREADY_ENQUEUED = registry.counter("mache_tasks_already_enqueued_total",
+			"Window and shard tasks skipped because a task with the same name already existed");
+
+	/**
+	 * @return the sampled time an exporter takes to write the fields of one row
+	 */
+	public static Histogram exporterWriteMicros(String exporterName) {
+		return registry.histogram("mache_exporter_write_micros",
+				"Time an exporter takes to write one row, sampled", MICROS_BUCKETS, "exporter", exporterName);
+	}
+
+	public static void insertAllRequestFailed(int statusCode) {
+		registry.counter("mache_insertall_request_errors_total",
+				"Failed insertAll requests by HTTP status, 0 without a response", "status", Integer.toString(statusCode)).increment();
+	}
+
+	public static void insertAllRowRejected(String reason) {
+		registry.counter("mache_insertall_row_errors_total",
+				"Rows rejected by insertAll by reason", "reason", reason).increment();
+	}
+}
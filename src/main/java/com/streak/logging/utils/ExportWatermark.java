@@ -0,0 +1,141 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * The windows planned for a configuration with adaptive window sizing, kept
+ * in the datastore under the configuration class name.
+ *
+ * Windows are planned back to back from the watermark, so however their
+ * lengths change they never overlap or leave gaps. Windows are planned in a
+ * transaction before they are enqueued; enqueuedUntilMs trails the
+ * watermark until their tasks have been added, so windows planned by a run
+ * that failed are enqueued by the next run under the same task names.
+ *
+ * The most recent windows are kept to size the next ones from how many
+ * rows they held and how long they took to export.
+ */
+public class ExportWatermark {
+	public static final String KIND = "MacheExportWatermark";
+	
+	// About an hour of windows at a one minute cron
+	private static final int RECENT_WINDOW_COUNT = 60;
+
+	private final String configClassName;
+	private long watermarkMs;
+	private long enqueuedUntilMs;
+	private List<Long> recentStarts = new ArrayList<>();
+	private List<Long> recentEnds = new ArrayList<>();
+
+	public ExportWatermark(String configClassName, long watermarkMs) {
+		this.configClassName = configClassName;
+		this.watermarkMs = watermarkMs;
+		this.enqueuedUntilMs = watermarkMs;
+	}
+
+	/**
+	 * @return the watermark of the configuration, or null if no windows have been planned for it
+	 */
+	public static ExportWatermark load(DatastoreService datastore, Transaction txn, String configClassName) {
+		Entity entity;
+		try {
+			entity = datastore.get(txn, getKey(configClassName));
+		}
+		catch (EntityNotFoundException e) {
+			return null;
+		}
+		ExportWatermark watermark = new ExportWatermark(configClassName, (Long) entity.getProperty("watermarkMs"));
+		watermark.enqueuedUntilMs = (Long) entity.getProperty("enqueuedUntilMs");
+		watermark.recentStarts = getList(entity, "recentStarts");
+		watermark.recentEnds = getList(entity, "recentEnds");
+		return watermark;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Long> getList(Entity entity, String property) {
+		// The datastore returns null for an empty list
+		Collection<Long> values = (Collection<Long>) entity.getProperty(property);
+		return values == null ? new ArrayList<Long>() : new ArrayList<Long>(values);
+	}
+
+	public void save(DatastoreService datastore, Transaction txn) {
+		Entity entity = new Entity(getKey(configClassName));
+		entity.setUnindexedProperty("watermarkMs", watermarkMs);
+		entity.setUnindexedProperty("enqueuedUntilMs", enqueuedUntilMs);
+		entity.setUnindexedProperty("recentStarts", recentStarts);
+		entity.setUnindexedProperty("recentEnds", recentEnds);
+		datastore.put(txn, entity);
+	}
+
+	private static Key getKey(String configClassName) {
+		return KeyFactory.createKey(KIND, configClassName);
+	}
+
+	/**
+	 * @return the end of the last planned window
+	 */
+	public long getWatermarkMs() {
+		return watermarkMs;
+	}
+
+	public long getEnqueuedUntilMs() {
+		return enqueuedUntilMs;
+	}
+
+	public void setEnqueuedUntilMs(long enqueuedUntilMs) {
+		this.enqueuedUntilMs = Math.max(this.enqueuedUntilMs, enqueuedUntilMs);
+	}
+
+	/**
+	 * Plan the window starting at the watermark.
+	 */
+	public void addWindow(long endMs) {
+		recentStarts.add(watermarkMs);
+		recentEnds.add(endMs);
+		watermarkMs = endMs;
+		while (recentStarts.size() > RECENT_WINDOW_COUNT) {
+			recentStarts.remove(0);
+			recentEnds.remove(0);
+		}
+	}
+
+	/**
+	 * @return the number of recent windows, oldest first
+	 */
+	public int getRecentWindowCount() {
+		return recentStarts.size();
+	}
+
+	public long getRecentWindowStart(int i) {
+		return recentStarts.get(i);
+	}
+
+	public long getRecentWindowEnd(int i) {
+		return recentEnds.get(i);
+	}
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cost of one exporter while profiling is enabled: the rows it processed,
+ * the time spent in processLog and getField, and the bytes it allocated when
+ * the JVM can count allocations per thread.
+ *
+ * Exporters that implement IndexedLogsFieldExporter do both steps in
+ * writeFields, so their whole time is reported as processLog time.
+ *
+ * Each profiled export collects its own profiles, logs them as a summary and
+ * then adds them to the totals of the instance.
+ */
+public class ExporterProfile {
+	private static final ConcurrentMap<String, ExporterProfile> INSTANCE_PROFILES = new ConcurrentHashMap<>();
+	private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = allocationBean();
+
+	private final String exporterName;
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong processLogNanos = new AtomicLong();
+	private final AtomicLong getFieldNanos = new AtomicLong();
+	private final AtomicLong allocatedBytes = new AtomicLong();
+
+	public ExporterProfile(String exporterName) {
+		this.exporterName = exporterName;
+	}
+
+	public void record(long processLogNanos, long getFieldNanos, long allocatedBytes) {
+		this.rows.incrementAndGet();
+		this.processLogNanos.addAndGet(processLogNanos);
+		this.getFieldNanos.addAndGet(getFieldNanos);
+		if (allocatedBytes > 0) {
+			this.allocatedBytes.addAndGet(allocatedBytes);
+		}
+	}
+
+	public String getExporterName() {
+		return exporterName;
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	public long getProcessLogNanos() {
+		return processLogNanos.get();
+	}
+
+	public long getGetFieldNanos() {
+		return getFieldNanos.get();
+	}
+
+	public long getTotalNanos() {
+		return processLogNanos.get() + getFieldNanos.get();
+	}
+
+	/**
+	 * @return the bytes allocated by the exporter, 0 if allocations can't be counted
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * Add the given profiles to the totals of this instance.
+	 */
+	public static void addToInstanceProfiles(Collection<ExporterProfile> profiles) {
+		for (ExporterProfile profile : profiles) {
+			ExporterProfile total = INSTANCE_PROFILES.get(profile.exporterName);
+			if (total == null) {
+				ExporterProfile created = new ExporterProfile(profile.exporterName);
+				total = INSTANCE_PROFILES.putIfAbsent(profile.exporterName, created);
+				if (total == null) {
+					total = created;
+				}
+			}
+			total.rows.addAndGet(profile.getRows());
+			total.processLogNanos.addAndGet(profile.getProcessLogNanos());
+			total.getFieldNanos.addAndGet(profile.getGetFieldNanos());
+			total.allocatedBytes.addAndGet(profile.getAllocatedBytes());
+		}
+	}
+
+	/**
+	 * @return the totals of this instance, the most expensive exporter first
+	 */
+	public static List<ExporterProfile> getInstanceProfiles() {
+		return sortByCost(INSTANCE_PROFILES.values());
+	}
+
+	public static void resetInstanceProfiles() {
+		INSTANCE_PROFILES.clear();
+	}
+
+	public static List<ExporterProfile> sortByCost(Collection<ExporterProfile> profiles) {
+		List<ExporterProfile> sorted = new ArrayList<>(profiles);
+		Collections.sort(sorted, new Comparator<ExporterProfile>() {
+			@Override
+			public int compare(ExporterProfile a, ExporterProfile b) {
+				return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+			}
+		});
+		return sorted;
+	}
+
+	/**
+	 * @return one line per exporter, the most expensive first
+	 */
+	public static String summarize(Collection<ExporterProfile> profiles) {
+		StringBuilder sb = new StringBuilder("Exporter profile --------------\n");
+		for (ExporterProfile profile : sortByCost(profiles)) {
+			sb.append(profile).append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, or -1 if the JVM doesn't count them
+	 */
+	public static long currentThreadAllocatedBytes() {
+		if (ALLOCATION_BEAN == null) {
+			return -1;
+		}
+		return ALLOCATION_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		try {
+			java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean) {
+				com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+				if (allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled()) {
+					return allocationBean;
+				}
+			}
+		}
+		catch (Throwable t) {
+			// java.lang.management isn't available in the App Engine sandbox
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		long rowCount = Math.max(1, getRows());
+		return exporterName + ": rows=" + getRows()
+				+ ", totalMs=" + getTotalNanos() / 1000000
+				+ ", processLogNsPerRow=" + getProcessLogNanos() / rowCount
+				+ ", getFieldNsPerRow=" + getGetFieldNanos() / rowCount
+				+ ", allocatedBytesPerRow=" + getAllocatedBytes() / rowCount;
+	}
+}
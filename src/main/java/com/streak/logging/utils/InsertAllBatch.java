@@ -0,0 +1,188 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The body of a tabledata.insertAll request, serialized as rows are added:
+ * {"rows":[{"insertId":"...","json":{...}},...]}
+ *
+ * {@link #size()} is always the exact number of bytes that will be sent,
+ * including the closing brackets, so batches can be cut precisely. A batch
+ * is reset and reused once it has been sent.
+ */
+public class InsertAllBatch {
+	private static final byte[] HEADER = "{\"rows\":[".getBytes();
+	private static final byte[] FOOTER = "]}".getBytes();
+	private static final byte[] INSERT_ID_PREFIX = "{\"insertId\":".getBytes();
+	private static final byte[] JSON_PREFIX = "\"json\":".getBytes();
+
+	private final Utf8JsonBuffer body;
+	private final List<String> insertIds = new ArrayList<>();
+	private int[] rowOffsets = new int[64];
+	private boolean finished;
+
+	public InsertAllBatch() {
+		this(64 * 1024);
+	}
+
+	public InsertAllBatch(int initialCapacity) {
+		body = new Utf8JsonBuffer(initialCapacity);
+		reset();
+	}
+
+	/**
+	 * Remove all rows so the batch can be reused.
+	 */
+	public void reset() {
+		body.reset();
+		body.writeRaw(HEADER);
+		insertIds.clear();
+		finished = false;
+	}
+
+	public int getRowCount() {
+		return insertIds.size();
+	}
+
+	public boolean isEmpty() {
+		return insertIds.isEmpty();
+	}
+
+	/**
+	 * @return the insert ids of the rows in the order they were added, entries may be null
+	 */
+	public List<String> getInsertIds() {
+		return insertIds;
+	}
+
+	/**
+	 * @return the exact size in bytes of the finished request body
+	 */
+	public int size() {
+		return finished ? body.size() : body.size() + FOOTER.length;
+	}
+
+	/**
+	 * @return the exact size in bytes the finished request body would have with the given row added
+	 */
+	public int sizeWithRow(String insertId, Utf8JsonBuffer rowJson) {
+		return size() + rowEntrySize(insertId, rowJson);
+	}
+
+	private int rowEntrySize(String insertId, Utf8JsonBuffer rowJson) {
+		int separator = isEmpty() ? 0 : 1;
+		int insertIdEntry = insertId == null ? 1 : INSERT_ID_PREFIX.length + Utf8JsonBuffer.quotedLength(insertId) + 1;
+		return separator + insertIdEntry + JSON_PREFIX.length + rowJson.size() + 1;
+	}
+
+	/**
+	 * @param insertId the row's insert id, or null to let BigQuery generate one
+	 * @param rowJson a serialized JSON object, copied into the batch
+	 */
+	public void addRow(String insertId, Utf8JsonBuffer rowJson) {
+		if (finished) {
+			throw new IllegalStateException("Can't add rows to a finished batch");
+		}
+		if (!isEmpty()) {
+			body.writeByte(',');
+		}
+		int rowIndex = insertIds.size();
+		if (rowIndex == rowOffsets.length) {
+			rowOffsets = Arrays.copyOf(rowOffsets, rowOffsets.length << 1);
+		}
+		rowOffsets[rowIndex] = body.size();
+
+		if (insertId == null) {
+			body.writeByte('{');
+		}
+		else {
+			body.writeRaw(INSERT_ID_PREFIX);
+			body.writeString(insertId);
+			body.writeByte(',');
+		}
+		body.writeRaw(JSON_PREFIX);
+		body.writeRaw(rowJson);
+		body.writeByte('}');
+		insertIds.add(insertId);
+	}
+
+	/**
+	 * Copy a row of another batch, with its insert id, without serializing it again.
+	 */
+	public void addRow(InsertAllBatch source, int rowIndex) {
+		if (finished) {
+			throw new IllegalStateException("Can't add rows to a finished batch");
+		}
+		if (!isEmpty()) {
+			body.writeByte(',');
+		}
+		int targetIndex = insertIds.size();
+		if (targetIndex == rowOffsets.length) {
+			rowOffsets = Arrays.copyOf(rowOffsets, rowOffsets.length << 1);
+		}
+		rowOffsets[targetIndex] = body.size();
+		
+		body.writeRaw(source.body.array(), source.rowOffsets[rowIndex], source.getRowSize(rowIndex));
+		insertIds.add(source.insertIds.get(rowIndex));
+	}
+
+	/**
+	 * @return the JSON object of the given row, without its insert id
+	 */
+	public String getRowJson(int rowIndex) {
+		String insertId = insertIds.get(rowIndex);
+		int insertIdEntry = insertId == null ? 1 : INSERT_ID_PREFIX.length + Utf8JsonBuffer.quotedLength(insertId) + 1;
+		int start = rowOffsets[rowIndex] + insertIdEntry + JSON_PREFIX.length;
+		int end = rowOffsets[rowIndex] + getRowSize(rowIndex) - 1;
+		try {
+			return new String(body.array(), start, end - start, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the size in bytes of the given row's entry, excluding the separating comma
+	 */
+	public int getRowSize(int rowIndex) {
+		int end = rowIndex + 1 < insertIds.size() ? rowOffsets[rowIndex + 1] - 1 : (finished ? body.size() - FOOTER.length : body.size());
+		return end - rowOffsets[rowIndex];
+	}
+
+	/**
+	 * Close the rows array. No more rows can be added until the batch is reset.
+	 */
+	public void finish() {
+		if (!finished) {
+			body.writeRaw(FOOTER);
+			finished = true;
+		}
+	}
+
+	/**
+	 * @return the backing array of the request body, valid up to {@link #size()} after {@link #finish()}
+	 */
+	public byte[] getBody() {
+		return body.array();
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.appengine.api.datastore.Text;
+import com.streak.logging.analysis.RowSink;
+
+/**
+ * Serializes the fields written by a plan's exporters straight into a JSON
+ * object, ready to be appended to an {@link InsertAllBatch}. The buffer is
+ * reused for every row. Null values of nullable fields are left out of the
+ * object, which BigQuery reads as null.
+ *
+ * Records and repeated fields are written into the same buffer as they are
+ * started and ended; the names of their subfields are encoded once, when the
+ * sink is created.
+ */
+public class JsonRowSink implements RowSink {
+	// BigQuery nests records at most 15 levels deep, each of them can be repeated
+	private static final int MAX_DEPTH = 32;
+
+	private final RowPlan plan;
+	private final Utf8JsonBuffer buffer = new Utf8JsonBuffer(4096);
+
+	// The row, then the records and repeated fields being written, reused for every row
+	private final Scope[] scopes = new Scope[MAX_DEPTH];
+	private int depth;
+	private Scope scope;
+
+	private int exporterIndex;
+	private int fieldOffset;
+
+	public JsonRowSink(RowPlan plan) {
+		this.plan = plan;
+		for (int i = 0; i < scopes.length; i++) {
+			scopes[i] = new Scope();
+		}
+		
+		int fieldCount = plan.getFieldCount();
+		List<TableFieldSchema> schemaFields = plan.getSchema().getFields();
+		Fields rowFields = new Fields(fieldCount);
+		for (int slot = 0; slot < fieldCount; slot++) {
+			List<TableFieldSchema> subfields = schemaFields.get(slot).getFields();
+			rowFields.set(slot, plan.getFieldName(slot), plan.getFieldType(slot), plan.isFieldNullable(slot), plan.isFieldRepeated(slot),
+					"record" == plan.getFieldType(slot) && subfields != null ? Fields.forSchema(subfields) : null);
+		}
+		scopes[0].fields = rowFields;
+	}
+
+	/**
+	 * Start serializing a new row, discarding the previous one.
+	 */
+	public void startRow() {
+		buffer.reset();
+		buffer.writeByte('{');
+		depth = 0;
+		scope = scopes[0];
+		scope.first = true;
+		selectExporter(0);
+	}
+
+	/**
+	 * Select the exporter, by its position in the plan, whose fields are written next.
+	 */
+	public void selectExporter(int exporterIndex) {
+		this.exporterIndex = exporterIndex;
+		this.fieldOffset = plan.getFieldOffset(exporterIndex);
+	}
+
+	public void endRow() {
+		if (depth != 0) {
+			throw new InvalidFieldException("Exporter " + plan.getExporterName(exporterIndex) + " didn't end " + scope.getName());
+		}
+		buffer.writeByte('}');
+	}
+
+	/**
+	 * @return the serialized row, valid until the next {@link #startRow()}
+	 */
+	public Utf8JsonBuffer getRow() {
+		return buffer;
+	}
+
+	/**
+	 * @return the index of the field among the fields of the current row or record
+	 */
+	private int slot(int fieldIndex) {
+		return depth == 0 ? fieldOffset + fieldIndex : fieldIndex;
+	}
+
+	private void writeFieldName(int fieldIndex) {
+		if (!scope.first) {
+			buffer.writeByte(',');
+		}
+		scope.first = false;
+		if (scope.elementName == null) {
+			buffer.writeRaw(scope.fields.namePrefixes[slot(fieldIndex)]);
+		}
+	}
+
+	@Override
+	public void putNull(int fieldIndex) {
+		if (scope.elementName != null) {
+			throw new InvalidFieldException(
+					"Exporter " + plan.getExporterName(exporterIndex) +
+					" wrote a null element in repeated field " + scope.elementName);
+		}
+		if (!scope.fields.nullable[slot(fieldIndex)]) {
+			throw new InvalidFieldException(
+					"Exporter " + plan.getExporterName(exporterIndex) +
+					" didn't return field for " + scope.fields.names[slot(fieldIndex)]);
+		}
+	}
+
+	@Override
+	public void putLong(int fieldIndex, long value) {
+		writeFieldName(fieldIndex);
+		buffer.writeLong(value);
+	}
+
+	@Override
+	public void putDouble(int fieldIndex, double value) {
+		writeFieldName(fieldIndex);
+		buffer.writeDouble(value);
+	}
+
+	@Override
+	public void putBoolean(int fieldIndex, boolean value) {
+		writeFieldName(fieldIndex);
+		buffer.writeBoolean(value);
+	}
+
+	@Override
+	public void putString(int fieldIndex, String value) {
+		if (value == null) {
+			putNull(fieldIndex);
+			return;
+		}
+		writeFieldName(fieldIndex);
+		buffer.writeString(value);
+	}
+
+	@Override
+	public void putObject(int fieldIndex, Object value) {
+		if (value == null) {
+			putNull(fieldIndex);
+			return;
+		}
+		writeFieldName(fieldIndex);
+		if (scope.elementName != null) {
+			writeFormatted(value, scope.elementType);
+		}
+		else if (scope.fields.repeated[slot(fieldIndex)] && value instanceof Iterable) {
+			// The elements of a repeated field returned by getField
+			String type = scope.fields.types[slot(fieldIndex)];
+			buffer.writeByte('[');
+			boolean first = true;
+			for (Object element : (Iterable<?>) value) {
+				if (!first) {
+					buffer.writeByte(',');
+				}
+				first = false;
+				writeFormatted(element, type);
+			}
+			buffer.writeByte(']');
+		}
+		else {
+			writeFormatted(value, scope.fields.types[slot(fieldIndex)]);
+		}
+	}
+
+	private void writeFormatted(Object value, String type) {
+		// Same formatting as AnalysisUtility.putJsonValueFormatted, types are interned
+		if ("string" == type) {
+			if (value instanceof Text) {
+				buffer.writeString(((Text) value).getValue());
+			}
+			else {
+				buffer.writeString(value.toString());
+			}
+		}
+		else {
+			buffer.writeValue(value);
+		}
+	}
+
+	@Override
+	public void startRepeated(int fieldIndex) {
+		if (scope.elementName != null) {
+			throw new InvalidFieldException("Exporter " + plan.getExporterName(exporterIndex) + " started a repeated field in " + scope.getName());
+		}
+		int slot = slot(fieldIndex);
+		Fields fields = scope.fields;
+		writeFieldName(fieldIndex);
+		buffer.writeByte('[');
+		Scope repeated = push();
+		repeated.elementName = fields.names[slot];
+		repeated.elementType = fields.types[slot];
+		repeated.fields = fields.subfields[slot];
+	}
+
+	@Override
+	public void endRepeated() {
+		if (scope.elementName == null) {
+			throw new InvalidFieldException("Exporter " + plan.getExporterName(exporterIndex) + " ended a repeated field in " + scope.getName());
+		}
+		buffer.writeByte(']');
+		pop();
+	}
+
+	@Override
+	public void startRecord(int fieldIndex) {
+		Fields subfields;
+		String name;
+		if (scope.elementName != null) {
+			subfields = scope.fields;
+			name = scope.elementName;
+		}
+		else {
+			subfields = scope.fields.subfields[slot(fieldIndex)];
+			name = scope.fields.names[slot(fieldIndex)];
+		}
+		if (subfields == null) {
+			throw new InvalidFieldException("Exporter " + plan.getExporterName(exporterIndex) + " started field " + name 
+					+ ", which isn't a record with subfields");
+		}
+		writeFieldName(fieldIndex);
+		buffer.writeByte('{');
+		Scope record = push();
+		record.recordName = name;
+		record.fields = subfields;
+	}
+
+	@Override
+	public void endRecord() {
+		if (depth == 0 || scope.elementName != null) {
+			throw new InvalidFieldException("Exporter " + plan.getExporterName(exporterIndex) + " ended a record in " + scope.getName());
+		}
+		buffer.writeByte('}');
+		pop();
+	}
+
+	private Scope push() {
+		if (depth + 1 == MAX_DEPTH) {
+			throw new InvalidFieldException("Exporter " + plan.getExporterName(exporterIndex) + " nested records too deep");
+		}
+		scope = scopes[++depth];
+		scope.first = true;
+		scope.recordName = null;
+		scope.elementName = null;
+		scope.elementType = null;
+		scope.fields = null;
+		return scope;
+	}
+
+	private void pop() {
+		scope = scopes[--depth];
+	}
+
+	/**
+	 * @return the serialized row as a String, for logging
+	 */
+	@Override
+	public String toString() {
+		try {
+			return new String(buffer.array(), 0, buffer.size(), "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * The row, a record or the elements of a repeated field being written.
+	 */
+	private static class Scope {
+		// The fields of the row or record, or the subfields of the elements if they are records
+		Fields fields;
+		boolean first;
+		// Set for a record
+		String recordName;
+		// Set for a repeated field
+		String elementName;
+		String elementType;
+
+		String getName() {
+			if (elementName != null) {
+				return "repeated field " + elementName;
+			}
+			return recordName == null ? "the row" : "record " + recordName;
+		}
+	}
+
+	/**
+	 * The encoded names and the types of the fields of the row or of a record.
+	 */
+	private static class Fields {
+		final String[] names;
+		final byte[][] namePrefixes;
+		final String[] types;
+		final boolean[] nullable;
+		final boolean[] repeated;
+		final Fields[] subfields;
+
+		Fields(int fieldCount) {
+			names = new String[fieldCount];
+			namePrefixes = new byte[fieldCount][];
+			types = new String[fieldCount];
+			nullable = new boolean[fieldCount];
+			repeated = new boolean[fieldCount];
+			subfields = new Fields[fieldCount];
+		}
+
+		static Fields forSchema(List<TableFieldSchema> schemaFields) {
+			Fields fields = new Fields(schemaFields.size());
+			for (int i = 0; i < schemaFields.size(); i++) {
+				TableFieldSchema field = schemaFields.get(i);
+				String type = field.getType().toLowerCase().intern();
+				fields.set(i, field.getName(), type, !"REQUIRED".equalsIgnoreCase(field.getMode()), "REPEATED".equalsIgnoreCase(field.getMode()),
+						"record" == type && field.getFields() != null ? forSchema(field.getFields()) : null);
+			}
+			return fields;
+		}
+
+		void set(int i, String name, String type, boolean nullable, boolean repeated, Fields subfields) {
+			Utf8JsonBuffer prefix = new Utf8JsonBuffer(64);
+			prefix.writeString(name);
+			prefix.writeByte(':');
+			this.names[i] = name;
+			this.namePrefixes[i] = prefix.toByteArray();
+			this.types[i] = type;
+			this.nullable[i] = nullable;
+			this.repeated[i] = repeated;
+			this.subfields[i] = subfields;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.gson.Gson;
+
+/**
+ * Counters and histograms of the current instance, kept in memory since the
+ * instance started. Each metric has a name and optionally labels, given as
+ * alternating label names and values. Metrics are created on first use and
+ * are cheap to update from any thread, so look them up once outside of hot
+ * loops and keep the reference.
+ *
+ * The registry is written out as JSON or in the Prometheus text format.
+ */
+public class MetricsRegistry {
+	private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+	private final ConcurrentMap<String, Family> families = new ConcurrentHashMap<>();
+
+	/**
+	 * @return the registry the export path reports to
+	 */
+	public static MetricsRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	public Counter counter(String name, String help, String... labels) {
+		return (Counter) family(name, help, "counter", null).get(labels);
+	}
+
+	/**
+	 * @param bucketBounds the inclusive upper bounds of the buckets, in increasing order
+	 */
+	public Histogram histogram(String name, String help, long[] bucketBounds, String... labels) {
+		return (Histogram) family(name, help, "histogram", bucketBounds).get(labels);
+	}
+
+	private Family family(String name, String help, String type, long[] bucketBounds) {
+		Family family = families.get(name);
+		if (family == null) {
+			Family created = new Family(name, help, type, bucketBounds);
+			family = families.putIfAbsent(name, created);
+			if (family == null) {
+				family = created;
+			}
+		}
+		if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("Metric " + name + " is a " + family.type + ", not a " + type);
+		}
+		return family;
+	}
+
+	public static class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	public static class Histogram {
+		private final long[] bucketBounds;
+		private final AtomicLongArray bucketCounts;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+
+		Histogram(long[] bucketBounds) {
+			this.bucketBounds = bucketBounds;
+			this.bucketCounts = new AtomicLongArray(bucketBounds.length + 1);
+		}
+
+		public void observe(long value) {
+			int bucket = 0;
+			while (bucket < bucketBounds.length && value > bucketBounds[bucket]) {
+				bucket++;
+			}
+			bucketCounts.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sum.addAndGet(value);
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getSum() {
+			return sum.get();
+		}
+	}
+
+	private static class Family {
+		final String name;
+		final String help;
+		final String type;
+		final long[] bucketBounds;
+		final ConcurrentMap<String, Object> metrics = new ConcurrentHashMap<>();
+		final ConcurrentMap<String, Map<String, String>> labelSets = new ConcurrentHashMap<>();
+
+		Family(String name, String help, String type, long[] bucketBounds) {
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.bucketBounds = bucketBounds;
+		}
+
+		Object get(String[] labels) {
+			if (labels.length % 2 != 0) {
+				throw new IllegalArgumentException("Labels of " + name + " must be name/value pairs");
+			}
+			Map<String, String> labelMap = new TreeMap<String, String>();
+			for (int i = 0; i < labels.length; i += 2) {
+				labelMap.put(labels[i], labels[i + 1] == null ? "" : labels[i + 1]);
+			}
+			String key = formatLabels(labelMap, null);
+			
+			Object metric = metrics.get(key);
+			if (metric == null) {
+				Object created = "counter".equals(type) ? new Counter() : new Histogram(bucketBounds);
+				metric = metrics.putIfAbsent(key, created);
+				if (metric == null) {
+					metric = created;
+					labelSets.put(key, labelMap);
+				}
+			}
+			return metric;
+		}
+	}
+
+	/**
+	 * Write every metric in the Prometheus text exposition format.
+	 */
+	public void writePrometheus(Writer out) throws IOException {
+		for (Family family : new TreeMap<String, Family>(families).values()) {
+			out.write("# HELP " + family.name + " " + family.help + "\n");
+			out.write("# TYPE " + family.name + " " + family.type + "\n");
+			for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(family.metrics).entrySet()) {
+				Map<String, String> labels = family.labelSets.get(entry.getKey());
+				if (labels == null) {
+					continue; // being created right now
+				}
+				if (entry.getValue() instanceof Counter) {
+					out.write(family.name + formatLabels(labels, null) + " " + ((Counter) entry.getValue()).get() + "\n");
+					continue;
+				}
+				Histogram histogram = (Histogram) entry.getValue();
+				long cumulative = 0;
+				for (int bucket = 0; bucket <= histogram.bucketBounds.length; bucket++) {
+					cumulative += histogram.bucketCounts.get(bucket);
+					String bound = bucket < histogram.bucketBounds.length ? Long.toString(histogram.bucketBounds[bucket]) : "+Inf";
+					out.write(family.name + "_bucket" + formatLabels(labels, bound) + " " + cumulative + "\n");
+				}
+				out.write(family.name + "_sum" + formatLabels(labels, null) + " " + histogram.getSum() + "\n");
+				out.write(family.name + "_count" + formatLabels(labels, null) + " " + histogram.getCount() + "\n");
+			}
+		}
+	}
+
+	/**
+	 * Write every metric as a JSON object keyed by metric name.
+	 */
+	public void writeJson(Writer out) throws IOException {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		for (Family family : new TreeMap<String, Family>(families).values()) {
+			List<Map<String, Object>> values = new ArrayList<Map<String, Object>>();
+			for (Map.Entry<String, Object> entry : new TreeMap<String, Object>(family.metrics).entrySet()) {
+				Map<String, String> labels = family.labelSets.get(entry.getKey());
+				if (labels == null) {
+					continue;
+				}
+				Map<String, Object> value = new LinkedHashMap<String, Object>();
+				value.put("labels", labels);
+				if (entry.getValue() instanceof Counter) {
+					value.put("value", ((Counter) entry.getValue()).get());
+				}
+				else {
+					Histogram histogram = (Histogram) entry.getValue();
+					Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+					for (int bucket = 0; bucket <= histogram.bucketBounds.length; bucket++) {
+						String bound = bucket < histogram.bucketBounds.length ? Long.toString(histogram.bucketBounds[bucket]) : "+Inf";
+						buckets.put(bound, histogram.bucketCounts.get(bucket));
+					}
+					value.put("count", histogram.getCount());
+					value.put("sum", histogram.getSum());
+					value.put("buckets", buckets);
+				}
+				values.add(value);
+			}
+			
+			Map<String, Object> familyJson = new LinkedHashMap<String, Object>();
+			familyJson.put("help", family.help);
+			familyJson.put("type", family.type);
+			familyJson.put("values", values);
+			json.put(family.name, familyJson);
+		}
+		new Gson().toJson(json, out);
+	}
+
+	private static String formatLabels(Map<String, String> labels, String le) {
+		if (labels.isEmpty() && le == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder("{");
+		for (Map.Entry<String, String> label : labels.entrySet()) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append(label.getKey()).append("=\"").append(escapeLabelValue(label.getValue())).append('"');
+		}
+		if (le != null) {
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append("le=\"").append(le).append('"');
+		}
+		return sb.append('}').toString();
+	}
+
+	private static String escapeLabelValue(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+
+/**
+ * Serializes rows on a pool of request threads, one per list of exporters.
+ *
+ * The calling thread reads logs in chunks and hands each chunk to the pool.
+ * A thread takes an idle set of exporters, serializes the whole chunk into
+ * one buffer and returns the exporters. Up to two chunks per thread are in
+ * flight, and chunks are returned in the order they were read, so rows come
+ * out in log order and checkpoints and sharding work as in a sequential
+ * export.
+ */
+public class ParallelRowReader extends RowReader {
+	private static final int CHUNK_SIZE = 256;
+
+	private final ExecutorService executor;
+	private final BlockingQueue<RowTransformer> idleTransformers;
+	private final int maxChunksInFlight;
+	private final LinkedList<Future<Chunk>> chunks = new LinkedList<>();
+	private final Utf8JsonBuffer row = new Utf8JsonBuffer(4096);
+	private Chunk current;
+	private int currentIndex;
+
+	public ParallelRowReader(RowPlan plan, List<List<IndexedLogsFieldExporter>> exportersPerThread, Iterable<RequestLogs> logs) {
+		super(plan, logs);
+		int parallelism = exportersPerThread.size();
+		this.idleTransformers = new ArrayBlockingQueue<>(parallelism);
+		for (List<IndexedLogsFieldExporter> exporters : exportersPerThread) {
+			idleTransformers.add(new RowTransformer(plan, exporters));
+		}
+		this.executor = Executors.newFixedThreadPool(parallelism, AnalysisUtility.getRequestThreadFactory());
+		this.maxChunksInFlight = parallelism * 2;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (current != null && ++currentIndex < current.logs.size()) {
+			selectRow();
+			return true;
+		}
+		submitChunks();
+		if (chunks.isEmpty()) {
+			current = null;
+			return false;
+		}
+		current = StreamingInsertPipeline.getOrRethrow(chunks.removeFirst());
+		currentIndex = 0;
+		submitChunks();
+		selectRow();
+		return true;
+	}
+
+	@Override
+	public RequestLogs getLog() {
+		return current.logs.get(currentIndex);
+	}
+
+	@Override
+	public Utf8JsonBuffer getRow() {
+		return row;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void selectRow() {
+		int start = currentIndex == 0 ? 0 : current.rowEnds[currentIndex - 1];
+		row.reset();
+		row.writeRaw(current.rows.array(), start, current.rowEnds[currentIndex] - start);
+	}
+
+	private void submitChunks() {
+		while (chunks.size() < maxChunksInFlight) {
+			final List<RequestLogs> logs = new ArrayList<>(CHUNK_SIZE);
+			RequestLogs log;
+			while (logs.size() < CHUNK_SIZE && (log = readLog()) != null) {
+				logs.add(log);
+			}
+			if (logs.isEmpty()) {
+				return;
+			}
+			chunks.add(executor.submit(new Callable<Chunk>() {
+				@Override
+				public Chunk call() throws IOException {
+					RowTransformer transformer;
+					try {
+						transformer = idleTransformers.take();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("Interrupted while waiting for exporters");
+					}
+					try {
+						return new Chunk(logs, transformer);
+					}
+					finally {
+						idleTransformers.offer(transformer);
+					}
+				}
+			}));
+		}
+	}
+
+	/**
+	 * The serialized rows of a chunk of logs, back to back in one buffer.
+	 */
+	private static class Chunk {
+		final List<RequestLogs> logs;
+		final Utf8JsonBuffer rows = new Utf8JsonBuffer(64 * 1024);
+		final int[] rowEnds;
+
+		Chunk(List<RequestLogs> logs, RowTransformer transformer) {
+			this.logs = logs;
+			this.rowEnds = new int[logs.size()];
+			for (int i = 0; i < rowEnds.length; i++) {
+				rows.writeRaw(transformer.transform(logs.get(i)));
+				rowEnds[i] = rows.size();
+			}
+		}
+	}
+}
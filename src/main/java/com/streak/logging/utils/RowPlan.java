@@ -0,0 +1,352 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.streak.logging.analysis.AppLogExtractor;
+import com.streak.logging.analysis.AppLogsFieldExporter;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.LogsExportConfiguration;
+import com.streak.logging.analysis.LogsFieldExporter;
+import com.streak.logging.analysis.LogsFieldExporterAdapter;
+import com.streak.logging.analysis.LogsFieldExporterSet;
+import com.streak.logging.analysis.ParallelLogsFieldExporterSet;
+
+/**
+ * The schema of a LogsFieldExporterSet, compiled once and cached for the
+ * lifetime of the JVM.
+ *
+ * The fields of all exporters are laid out in slots, in exporter order. The
+ * fields of exporter e occupy slots {@link #getFieldOffset(int) getFieldOffset(e)}
+ * up to getFieldOffset(e + 1). For each slot the plan holds the field name,
+ * the lower case interned type and the nullable and repeated flags. The plan
+ * also holds the schema hash and the BigQuery TableSchema.
+ *
+ * The layout is cached by LogsExportConfiguration class name, so a
+ * configuration must produce the same fields every time. The configuration
+ * and its exporter set are instantiated again for every plan, as exporter sets
+ * may return the same exporters from every getExporters() call and exporters
+ * are stateful. Plans for an exporter set instance aren't cached, as instances
+ * of the same class may export different fields.
+ *
+ * App log lines are only fetched when an exporter of the set is an
+ * {@link AppLogsFieldExporter} that needs them. Each call to newExporters
+ * registers the exporters with a new {@link AppLogExtractor}.
+ */
+public class RowPlan {
+	private static final ConcurrentMap<String, RowPlan> CONFIGURATION_PLANS = new ConcurrentHashMap<>();
+
+	private final LogsExportConfiguration configuration;
+	private final LogsFieldExporterSet exporterSet;
+
+	private final int[] fieldOffsets;
+	private final String[] exporterNames;
+	private final String[] fieldNames;
+	private final String[] fieldTypes;
+	private final boolean[] fieldNullable;
+	private final boolean[] fieldRepeated;
+
+	private final String schemaHash;
+	private final TableSchema schema;
+	private final boolean appLogsNeeded;
+
+	/**
+	 * Create a plan for one export, with a new instance of the configuration and its exporter set. 
+	 * The layout is only compiled the first time.
+	 * 
+	 * @param logsExportConfigurationClassName the fully qualified name of a LogsExportConfiguration
+	 */
+	public static RowPlan forConfiguration(String logsExportConfigurationClassName) {
+		LogsExportConfiguration configuration = AnalysisUtility.instantiateLogExporterConfig(logsExportConfigurationClassName);
+		LogsFieldExporterSet exporterSet = configuration.getExporterSet();
+		RowPlan layout = CONFIGURATION_PLANS.get(logsExportConfigurationClassName);
+		if (layout == null) {
+			RowPlan plan = new RowPlan(configuration, exporterSet);
+			// Cached without the instances, so they're never shared between exports
+			CONFIGURATION_PLANS.putIfAbsent(logsExportConfigurationClassName, new RowPlan(plan, null, null));
+			return plan;
+		}
+		return new RowPlan(layout, configuration, exporterSet);
+	}
+
+	/**
+	 * @return a new plan for the given exporter set, which isn't cached
+	 */
+	public static RowPlan forExporterSet(LogsFieldExporterSet exporterSet) {
+		return new RowPlan(null, exporterSet);
+	}
+
+	private RowPlan(LogsExportConfiguration configuration, LogsFieldExporterSet exporterSet) {
+		this.configuration = configuration;
+		this.exporterSet = exporterSet;
+
+		List<LogsFieldExporter> exporters = exporterSet.getExporters();
+		int fieldCount = 0;
+		for (LogsFieldExporter exporter : exporters) {
+			fieldCount += exporter.getFieldCount();
+		}
+
+		fieldOffsets = new int[exporters.size() + 1];
+		exporterNames = new String[exporters.size()];
+		fieldNames = new String[fieldCount];
+		fieldTypes = new String[fieldCount];
+		fieldNullable = new boolean[fieldCount];
+		fieldRepeated = new boolean[fieldCount];
+
+		schema = new TableSchema();
+		schema.setFields(new ArrayList<TableFieldSchema>());
+		Set<String> seenFieldNames = new HashSet<String>();
+
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new RuntimeException("Couldn't find MD5 algorithm for schema hash", nsae);
+		}
+
+		int slot = 0;
+		for (int e = 0; e < exporters.size(); e++) {
+			LogsFieldExporter exporter = exporters.get(e);
+			fieldOffsets[e] = slot;
+			exporterNames[e] = exporter.getClass().getCanonicalName();
+
+			for (int i = 0; i < exporter.getFieldCount(); i++, slot++) {
+				String fieldName = exporter.getFieldName(i).intern();
+				String rawFieldType = exporter.getFieldType(i);
+				String fieldType = rawFieldType.toLowerCase().intern();
+
+				if (!seenFieldNames.add(fieldName)) {
+					throw new InvalidFieldException("BigqueryFieldExporterSet " + exporterSet.getClass().getCanonicalName()
+							+ " defines multiple fields with name " + fieldName);
+				}
+
+				fieldNames[slot] = fieldName;
+				fieldTypes[slot] = fieldType;
+				fieldNullable[slot] = exporter.getFieldNullable(i);
+				fieldRepeated[slot] = exporter.getFieldRepeated(i);
+
+				try {
+					md.update(fieldName.getBytes("UTF-8"));
+					md.update(rawFieldType.getBytes("UTF-8"));
+				}
+				catch (UnsupportedEncodingException uee) {
+					throw new RuntimeException("Couldn't get UTF-8 encoding for schema hash", uee);
+				}
+
+				TableFieldSchema tfs = new TableFieldSchema();
+				tfs.setName(fieldName);
+				tfs.setType(fieldType);
+				tfs.setMode(fieldRepeated[slot] ? "REPEATED" : "NULLABLE");
+				if (fieldType.equals("record")) {
+					List<TableFieldSchema> subfields = exporter.getFieldFields(i);
+					if (subfields != null) {
+						// Copied, the schema is cloned and a list like Arrays.asList can't be
+						tfs.setFields(copyFields(subfields));
+					}
+				}
+				schema.getFields().add(tfs);
+			}
+		}
+		fieldOffsets[exporters.size()] = slot;
+
+		byte[] array = md.digest();
+		StringBuffer sb = new StringBuffer();
+		for (int i = 0; i < array.length; ++i) {
+			sb.append(Integer.toHexString((array[i] & 0xFF) | 0x100).substring(1,3));
+		}
+		schemaHash = sb.toString().substring(0, 6);
+		appLogsNeeded = registerAppLogPatterns(exporters).isAppLogsNeeded();
+	}
+
+	/**
+	 * Share the layout of the given plan, which is never modified.
+	 */
+	private RowPlan(RowPlan layout, LogsExportConfiguration configuration, LogsFieldExporterSet exporterSet) {
+		this.configuration = configuration;
+		this.exporterSet = exporterSet;
+		this.fieldOffsets = layout.fieldOffsets;
+		this.exporterNames = layout.exporterNames;
+		this.fieldNames = layout.fieldNames;
+		this.fieldTypes = layout.fieldTypes;
+		this.fieldNullable = layout.fieldNullable;
+		this.fieldRepeated = layout.fieldRepeated;
+		this.schemaHash = layout.schemaHash;
+		this.schema = layout.schema;
+		this.appLogsNeeded = layout.appLogsNeeded;
+	}
+
+	private static List<TableFieldSchema> copyFields(List<TableFieldSchema> fields) {
+		List<TableFieldSchema> copies = new ArrayList<>(fields.size());
+		for (TableFieldSchema field : fields) {
+			TableFieldSchema copy = new TableFieldSchema();
+			copy.putAll(field);
+			if (field.getFields() != null) {
+				copy.setFields(copyFields(field.getFields()));
+			}
+			copies.add(copy);
+		}
+		return copies;
+	}
+
+	/**
+	 * @return the plan's configuration instance, or null for a plan created by {@link #forExporterSet}
+	 */
+	public LogsExportConfiguration getConfiguration() {
+		return configuration;
+	}
+
+	public LogsFieldExporterSet getExporterSet() {
+		return exporterSet;
+	}
+
+	/**
+	 * Get a fresh set of exporters for one export, or for one thread of a
+	 * parallel export. Exporters that aren't indexed are wrapped in a 
+	 * {@link LogsFieldExporterAdapter}.
+	 */
+	public List<IndexedLogsFieldExporter> newExporters() {
+		List<LogsFieldExporter> exporters;
+		if (exporterSet instanceof ParallelLogsFieldExporterSet) {
+			exporters = ((ParallelLogsFieldExporterSet) exporterSet).newExporters();
+		}
+		else {
+			exporters = exporterSet.getExporters();
+		}
+		if (exporters.size() != getExporterCount()) {
+			throw new InvalidFieldException("BigqueryFieldExporterSet " + exporterSet.getClass().getCanonicalName()
+					+ " returned " + exporters.size() + " exporters, expected " + getExporterCount());
+		}
+		for (int e = 0; e < exporters.size(); e++) {
+			if (exporters.get(e).getFieldCount() != fieldOffsets[e + 1] - fieldOffsets[e]) {
+				throw new InvalidFieldException("Exporter " + exporterNames[e] + " changed its field count");
+			}
+		}
+		registerAppLogPatterns(exporters).compile();
+		return LogsFieldExporterAdapter.adaptAll(exporters);
+	}
+
+	private static AppLogExtractor registerAppLogPatterns(List<LogsFieldExporter> exporters) {
+		AppLogExtractor extractor = new AppLogExtractor();
+		for (LogsFieldExporter exporter : exporters) {
+			if (exporter instanceof AppLogsFieldExporter) {
+				((AppLogsFieldExporter) exporter).registerAppLogPatterns(extractor);
+			}
+			else {
+				// May read getAppLogLines() itself, as any exporter could before 0.6.0
+				extractor.requireAppLogLines();
+			}
+		}
+		return extractor;
+	}
+
+	/**
+	 * @return new exporters for each of the {@link #getTransformParallelism()} threads transforming logs
+	 */
+	public List<List<IndexedLogsFieldExporter>> newExportersPerThread() {
+		int parallelism = getTransformParallelism();
+		List<List<IndexedLogsFieldExporter>> exportersPerThread = new ArrayList<>(parallelism);
+		for (int i = 0; i < parallelism; i++) {
+			exportersPerThread.add(newExporters());
+		}
+		return exportersPerThread;
+	}
+
+	/**
+	 * @return the number of threads logs are transformed on, 1 unless the exporter set is a {@link ParallelLogsFieldExporterSet}
+	 */
+	public int getTransformParallelism() {
+		if (!(exporterSet instanceof ParallelLogsFieldExporterSet)) {
+			return 1;
+		}
+		Integer parallelism = ((ParallelLogsFieldExporterSet) exporterSet).getTransformParallelism();
+		if (parallelism == null) {
+			return Runtime.getRuntime().availableProcessors();
+		}
+		return Math.max(1, parallelism);
+	}
+
+	public int getExporterCount() {
+		return exporterNames.length;
+	}
+
+	public String getExporterName(int exporterIndex) {
+		return exporterNames[exporterIndex];
+	}
+
+	/**
+	 * @return the slot of the first field of the given exporter
+	 */
+	public int getFieldOffset(int exporterIndex) {
+		return fieldOffsets[exporterIndex];
+	}
+
+	public int getFieldCount() {
+		return fieldNames.length;
+	}
+
+	/**
+	 * @return the interned name of the field in the given slot
+	 */
+	public String getFieldName(int slot) {
+		return fieldNames[slot];
+	}
+
+	/**
+	 * @return the lower case, interned type of the field in the given slot
+	 */
+	public String getFieldType(int slot) {
+		return fieldTypes[slot];
+	}
+
+	public boolean isFieldNullable(int slot) {
+		return fieldNullable[slot];
+	}
+
+	public boolean isFieldRepeated(int slot) {
+		return fieldRepeated[slot];
+	}
+
+	/**
+	 * @return whether an exporter needs the app log lines of each request
+	 */
+	public boolean isAppLogsNeeded() {
+		return appLogsNeeded;
+	}
+
+	public String getSchemaHash() {
+		return schemaHash;
+	}
+
+	/**
+	 * @return a copy of the compiled schema, which callers may modify
+	 */
+	public TableSchema getSchema() {
+		return schema.clone();
+	}
+}
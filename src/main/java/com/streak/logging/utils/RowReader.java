@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.analysis.LogsFieldExporterSet;
+
+/**
+ * Reads logs, drops the ones the exporter set skips and serializes the rest
+ * into rows, which are returned in the order the logs were read.
+ *
+ * Logs are always read on the calling thread, so the LogService result is
+ * iterated the same way however the rows are serialized.
+ */
+public abstract class RowReader {
+	private final TimedIterable<RequestLogs> timedLogs;
+	private final Iterator<RequestLogs> logs;
+	private final LogsFieldExporterSet exporterSet;
+	private long minEndTimeMs = Long.MIN_VALUE;
+	private boolean cutReached;
+	private int logsRead;
+	private int logsSkipped;
+
+	protected RowReader(RowPlan plan, Iterable<RequestLogs> logs) {
+		this.timedLogs = new TimedIterable<RequestLogs>(logs);
+		this.logs = timedLogs.iterator();
+		this.exporterSet = plan.getExporterSet();
+	}
+
+	/**
+	 * @param exportersPerThread one list of exporters for each thread serializing rows, a single list serializes them on the calling thread
+	 */
+	public static RowReader open(RowPlan plan, List<List<IndexedLogsFieldExporter>> exportersPerThread, Iterable<RequestLogs> logs) {
+		if (exportersPerThread.size() == 1) {
+			return new SequentialRowReader(plan, exportersPerThread.get(0), logs);
+		}
+		return new ParallelRowReader(plan, exportersPerThread, logs);
+	}
+
+	/**
+	 * Move to the next row.
+	 * 
+	 * @return false when there are no more rows
+	 */
+	public abstract boolean next() throws IOException;
+
+	/**
+	 * @return the log the current row was serialized from
+	 */
+	public abstract RequestLogs getLog();
+
+	/**
+	 * @return the current row, valid until the next call to {@link #next()}
+	 */
+	public abstract Utf8JsonBuffer getRow();
+
+	/**
+	 * Release the threads serializing rows.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * Stop reading once a log ends before the given time. Logs are returned
+	 * newest first, so every following log is older too. Rows that were
+	 * already serialized ahead of the cut are still returned.
+	 */
+	public void stopBefore(long minEndTimeMs) {
+		this.minEndTimeMs = minEndTimeMs;
+	}
+
+	/**
+	 * @return whether reading stopped at a log older than {@link #stopBefore(long)}
+	 */
+	public boolean isCutReached() {
+		return cutReached;
+	}
+
+	public int getLogsRead() {
+		return logsRead;
+	}
+
+	public int getLogsSkipped() {
+		return logsSkipped;
+	}
+
+	/**
+	 * @return the time spent waiting for the LogService
+	 */
+	public long getFetchNanos() {
+		return timedLogs.getNanos();
+	}
+
+	/**
+	 * @return the next log to serialize, or null when there are no more
+	 */
+	protected RequestLogs readLog() {
+		while (!cutReached && logs.hasNext()) {
+			RequestLogs log = logs.next();
+			logsRead++;
+			if (log.getEndTimeUsec() / 1000 < minEndTimeMs) {
+				cutReached = true;
+				return null;
+			}
+			if (exporterSet.skipLog(log)) {
+				logsSkipped++;
+				continue;
+			}
+			return log;
+		}
+		return null;
+	}
+}
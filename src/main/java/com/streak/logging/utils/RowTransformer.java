@@ -0,0 +1,70 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.List;
+
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+import com.streak.logging.utils.MetricsRegistry.Histogram;
+
+/**
+ * Serializes logs into JSON rows with one set of exporters. A transformer
+ * is used by one thread at a time and reuses its row buffer.
+ *
+ * The time each exporter takes is recorded for every
+ * {@link ExportMetrics#EXPORTER_SAMPLE_MASK 64th} row.
+ */
+public class RowTransformer {
+	private final List<IndexedLogsFieldExporter> exporters;
+	private final JsonRowSink sink;
+	private final Histogram[] exporterWriteMicros;
+	private int rowCount;
+
+	/**
+	 * @param exporters exporters from {@link RowPlan#newExporters()} that aren't used by any other thread
+	 */
+	public RowTransformer(RowPlan plan, List<IndexedLogsFieldExporter> exporters) {
+		this.exporters = exporters;
+		this.sink = new JsonRowSink(plan);
+		this.exporterWriteMicros = new Histogram[exporters.size()];
+		for (int exporterIndex = 0; exporterIndex < exporters.size(); exporterIndex++) {
+			exporterWriteMicros[exporterIndex] = ExportMetrics.exporterWriteMicros(plan.getExporterName(exporterIndex));
+		}
+	}
+
+	/**
+	 * @return the serialized row, valid until the next call
+	 */
+	public Utf8JsonBuffer transform(RequestLogs log) {
+		sink.startRow();
+		boolean sampled = (rowCount++ & ExportMetrics.EXPORTER_SAMPLE_MASK) == 0;
+		for (int exporterIndex = 0; exporterIndex < exporters.size(); exporterIndex++) {
+			sink.selectExporter(exporterIndex);
+			if (sampled) {
+				long startNanos = System.nanoTime();
+				exporters.get(exporterIndex).writeFields(log, sink);
+				exporterWriteMicros[exporterIndex].observe((System.nanoTime() - startNanos) / 1000);
+			}
+			else {
+				exporters.get(exporterIndex).writeFields(log, sink);
+			}
+		}
+		sink.endRow();
+		return sink.getRow();
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.List;
+
+import com.google.appengine.api.log.RequestLogs;
+import com.streak.logging.analysis.IndexedLogsFieldExporter;
+
+/**
+ * Serializes each row on the calling thread as it is read.
+ */
+public class SequentialRowReader extends RowReader {
+	private final RowTransformer transformer;
+	private RequestLogs log;
+	private Utf8JsonBuffer row;
+
+	public SequentialRowReader(RowPlan plan, List<IndexedLogsFieldExporter> exporters, Iterable<RequestLogs> logs) {
+		super(plan, logs);
+		this.transformer = new RowTransformer(plan, exporters);
+	}
+
+	@Override
+	public boolean next() {
+		log = readLog();
+		if (log == null) {
+			row = null;
+			return false;
+		}
+		row = transformer.transform(log);
+		return true;
+	}
+
+	@Override
+	public RequestLogs getLog() {
+		return log;
+	}
+
+	@Override
+	public Utf8JsonBuffer getRow() {
+		return row;
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.streak.logging.analysis.DeadLetterSink;
+import com.streak.logging.analysis.RetryPolicy;
+
+/**
+ * Uploads insertAll batches on a bounded pool of request threads so that the
+ * caller can keep reading and transforming logs while earlier batches are on
+ * the wire.
+ *
+ * At most maxConcurrentInserts batches are in flight at once. When that many
+ * are outstanding {@link #submit} blocks until one of them completes, which
+ * keeps memory bounded when BigQuery is slower than the LogService.
+ *
+ * Batches are recycled once they have been sent, so at most one more batch
+ * than the number of concurrent inserts is allocated.
+ *
+ * A failed batch is rethrown from the next call to {@link #submit} or from
+ * {@link #close}, so errors surface on the calling thread the same way they
+ * did when batches were sent synchronously.
+ *
+ * Batches may complete out of order. {@link #getSentBatchCount()} only
+ * counts batches whose predecessors have all been sent, so callers can
+ * checkpoint their progress safely.
+ */
+public class StreamingInsertPipeline {
+	private final ExecutorService executor;
+	private final Semaphore inFlightPermits;
+	private final List<Future<TableDataInsertAllResponse>> pending = new LinkedList<>();
+	private final Queue<InsertAllBatch> freeBatches = new ConcurrentLinkedQueue<>();
+	private final RetryPolicy retryPolicy;
+	private final DeadLetterSink deadLetterSink;
+	private final boolean gzip;
+	private long sentBatchCount;
+
+	/**
+	 * @param retryPolicy how each batch is retried
+	 * @param deadLetterSink receives rows that are rejected for good, or null to only log them
+	 */
+	public StreamingInsertPipeline(int maxConcurrentInserts, RetryPolicy retryPolicy, DeadLetterSink deadLetterSink) {
+		this(maxConcurrentInserts, retryPolicy, deadLetterSink, false);
+	}
+
+	/**
+	 * @param retryPolicy how each batch is retried
+	 * @param deadLetterSink receives rows that are rejected for good, or null to only log them
+	 * @param gzip whether request bodies are sent gzip encoded
+	 */
+	public StreamingInsertPipeline(int maxConcurrentInserts, RetryPolicy retryPolicy, DeadLetterSink deadLetterSink, boolean gzip) {
+		if (maxConcurrentInserts < 1) {
+			throw new IllegalArgumentException("maxConcurrentInserts must be at least 1, got " + maxConcurrentInserts);
+		}
+		this.executor = Executors.newFixedThreadPool(maxConcurrentInserts, AnalysisUtility.getRequestThreadFactory());
+		this.inFlightPermits = new Semaphore(maxConcurrentInserts);
+		this.retryPolicy = retryPolicy;
+		this.deadLetterSink = deadLetterSink;
+		this.gzip = gzip;
+	}
+
+	/**
+	 * @return an empty batch, recycled from one that has already been sent when possible
+	 */
+	public InsertAllBatch obtainBatch() {
+		InsertAllBatch batch = freeBatches.poll();
+		return batch != null ? batch : new InsertAllBatch();
+	}
+
+	/**
+	 * Queue a batch for upload. Blocks while the maximum number of batches are already in flight.
+	 * The batch must not be touched by the caller afterwards, it is recycled once it has been sent.
+	 */
+	public void submit(final InsertAllBatch batch, final String tableId,
+			final String datasetId, final String projectId, final Bigquery bigquery) throws IOException {
+		rethrowCompletedFailures();
+
+		try {
+			inFlightPermits.acquire();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for an insertAll slot");
+		}
+
+		Future<TableDataInsertAllResponse> future;
+		try {
+			future = executor.submit(new Callable<TableDataInsertAllResponse>() {
+				@Override
+				public TableDataInsertAllResponse call() throws IOException {
+					try {
+						TableDataInsertAllResponse response = BigqueryIngester.streamingBatchIngestion(batch, tableId, datasetId, projectId, bigquery, retryPolicy, deadLetterSink, gzip);
+						batch.reset();
+						freeBatches.offer(batch);
+						return response;
+					}
+					finally {
+						inFlightPermits.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e) {
+			inFlightPermits.release();
+			throw e;
+		}
+		pending.add(future);
+	}
+
+	/**
+	 * @return the number of submitted batches that have been sent, along with every batch submitted before them
+	 * @throws IOException the failure of any batch that has already completed
+	 */
+	public long getSentBatchCount() throws IOException {
+		rethrowCompletedFailures();
+		return sentBatchCount;
+	}
+
+	/**
+	 * Wait for every submitted batch to finish and release the upload threads.
+	 *
+	 * @throws IOException the first failure of any submitted batch
+	 */
+	public void close() throws IOException {
+		try {
+			for (Future<TableDataInsertAllResponse> future : pending) {
+				getOrRethrow(future);
+			}
+			pending.clear();
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Stop without waiting for outstanding batches, used when the caller is already failing.
+	 */
+	public void abort() {
+		executor.shutdownNow();
+	}
+
+	private void rethrowCompletedFailures() throws IOException {
+		boolean predecessorsSent = true;
+		Iterator<Future<TableDataInsertAllResponse>> it = pending.iterator();
+		while (it.hasNext()) {
+			Future<TableDataInsertAllResponse> future = it.next();
+			if (!future.isDone()) {
+				predecessorsSent = false;
+				continue;
+			}
+			getOrRethrow(future);
+			if (predecessorsSent) {
+				it.remove();
+				sentBatchCount++;
+			}
+		}
+	}
+
+	/**
+	 * Wait for a future and rethrow its failure as it was thrown by the task.
+	 */
+	static <T> T getOrRethrow(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a task to complete");
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException("Task failed", cause);
+		}
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskHandle;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Adds named tasks to a queue in as few requests as the queue allows.
+ *
+ * Tasks are added in chunks of {@link QueueConstants#maxTasksPerAdd()}, all
+ * chunks at once. A task whose name already exists is counted as a
+ * duplicate, the other tasks of its chunk are still added.
+ */
+public class TaskBatchEnqueuer {
+	private static final Logger log = Logger.getLogger("bqlogging");
+
+	/**
+	 * The outcome of adding a list of tasks.
+	 */
+	public static class Result {
+		private int addedCount;
+		private int duplicateCount;
+
+		/**
+		 * @return the number of tasks that were added to the queue
+		 */
+		public int getAddedCount() {
+			return addedCount;
+		}
+
+		/**
+		 * @return the number of tasks that weren't added because a task with the same name already existed
+		 */
+		public int getDuplicateCount() {
+			return duplicateCount;
+		}
+
+		@Override
+		public String toString() {
+			return addedCount + " tasks added, " + duplicateCount + " already existed";
+		}
+	}
+
+	/**
+	 * @throws RuntimeException the first failure other than an existing task name, after every chunk has completed
+	 */
+	public static Result enqueue(Queue queue, List<TaskOptions> tasks) {
+		int chunkSize = QueueConstants.maxTasksPerAdd();
+		List<Future<List<TaskHandle>>> futures = new ArrayList<>();
+		List<Integer> chunkSizes = new ArrayList<>();
+		for (int from = 0; from < tasks.size(); from += chunkSize) {
+			List<TaskOptions> chunk = tasks.subList(from, Math.min(from + chunkSize, tasks.size()));
+			futures.add(queue.addAsync(chunk));
+			chunkSizes.add(chunk.size());
+		}
+		
+		Result result = new Result();
+		RuntimeException failure = null;
+		for (int i = 0; i < futures.size(); i++) {
+			try {
+				result.addedCount += futures.get(i).get().size();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while adding tasks to " + queue.getQueueName(), e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof TaskAlreadyExistsException) {
+					int duplicates = ((TaskAlreadyExistsException) e.getCause()).getTaskNames().size();
+					result.duplicateCount += duplicates;
+					result.addedCount += chunkSizes.get(i) - duplicates;
+				}
+				else if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() 
+							: new IllegalStateException("Couldn't add tasks to " + queue.getQueueName(), e.getCause());
+				}
+			}
+		}
+		
+		ExportMetrics.TASKS_ENQUEUED.add(result.addedCount);
+		ExportMetrics.TASKS_ALREADY_ENQUEUED.add(result.duplicateCount);
+		if (failure != null) {
+			log.warning("Failed adding tasks to " + queue.getQueueName() + " after " + result + ": " + failure);
+			throw failure;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.Iterator;
+
+/**
+ * Measures the time spent iterating another Iterable, e.g. how long a lazily
+ * fetched LogService result keeps the caller waiting.
+ */
+public class TimedIterable<T> implements Iterable<T> {
+	private final Iterable<T> iterable;
+	private long nanos;
+
+	public TimedIterable(Iterable<T> iterable) {
+		this.iterable = iterable;
+	}
+
+	/**
+	 * @return the time spent in the iterators' hasNext and next calls so far
+	 */
+	public long getNanos() {
+		return nanos;
+	}
+
+	@Override
+	public Iterator<T> iterator() {
+		long start = System.nanoTime();
+		final Iterator<T> iterator = iterable.iterator();
+		nanos += System.nanoTime() - start;
+		
+		return new Iterator<T>() {
+			@Override
+			public boolean hasNext() {
+				long start = System.nanoTime();
+				try {
+					return iterator.hasNext();
+				}
+				finally {
+					nanos += System.nanoTime() - start;
+				}
+			}
+
+			@Override
+			public T next() {
+				long start = System.nanoTime();
+				try {
+					return iterator.next();
+				}
+				finally {
+					nanos += System.nanoTime() - start;
+				}
+			}
+
+			@Override
+			public void remove() {
+				iterator.remove();
+			}
+		};
+	}
+}
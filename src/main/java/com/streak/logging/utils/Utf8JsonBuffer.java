@@ -0,0 +1,311 @@
+/*
+ * Copyright 2012 Rewardly Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.streak.logging.utils;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * A growable byte array that JSON is written into as UTF-8, so the exact
+ * encoded size is always known. Buffers are meant to be reset and reused.
+ */
+public class Utf8JsonBuffer {
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+	private static final byte[] NULL = "null".getBytes();
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+	private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes();
+
+	private byte[] buf;
+	private int count;
+
+	public Utf8JsonBuffer(int initialCapacity) {
+		buf = new byte[Math.max(initialCapacity, 16)];
+	}
+
+	public void reset() {
+		count = 0;
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Discard everything written after the given size.
+	 */
+	public void truncate(int size) {
+		if (size < 0 || size > count) {
+			throw new IndexOutOfBoundsException("Can't truncate " + count + " bytes to " + size);
+		}
+		count = size;
+	}
+
+	/**
+	 * @return the backing array, valid up to {@link #size()}
+	 */
+	public byte[] array() {
+		return buf;
+	}
+
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+	private void ensureCapacity(int minCapacity) {
+		if (minCapacity > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, minCapacity));
+		}
+	}
+
+	public void writeByte(char c) {
+		ensureCapacity(count + 1);
+		buf[count++] = (byte) c;
+	}
+
+	public void writeRaw(byte[] bytes) {
+		writeRaw(bytes, 0, bytes.length);
+	}
+
+	public void writeRaw(byte[] bytes, int offset, int length) {
+		ensureCapacity(count + length);
+		System.arraycopy(bytes, offset, buf, count, length);
+		count += length;
+	}
+
+	public void writeRaw(Utf8JsonBuffer other) {
+		writeRaw(other.buf, 0, other.count);
+	}
+
+	public void writeNull() {
+		writeRaw(NULL);
+	}
+
+	public void writeBoolean(boolean value) {
+		writeRaw(value ? TRUE : FALSE);
+	}
+
+	public void writeLong(long value) {
+		if (value == Long.MIN_VALUE) {
+			writeRaw(LONG_MIN_VALUE);
+			return;
+		}
+		ensureCapacity(count + 20);
+		if (value < 0) {
+			buf[count++] = '-';
+			value = -value;
+		}
+		int start = count;
+		do {
+			buf[count++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		for (int i = start, j = count - 1; i < j; i++, j--) {
+			byte b = buf[i];
+			buf[i] = buf[j];
+			buf[j] = b;
+		}
+	}
+
+	/**
+	 * NaN and infinite values are not valid JSON numbers, they are written as quoted strings.
+	 */
+	public void writeDouble(double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			writeString(Double.toString(value));
+			return;
+		}
+		writeAscii(Double.toString(value));
+	}
+
+	private void writeAscii(String s) {
+		int length = s.length();
+		ensureCapacity(count + length);
+		for (int i = 0; i < length; i++) {
+			buf[count++] = (byte) s.charAt(i);
+		}
+	}
+
+	/**
+	 * Write a quoted, escaped JSON string. Unpaired surrogates are written as '?', like String.getBytes does.
+	 */
+	public void writeString(String s) {
+		int length = s.length();
+		ensureCapacity(count + 6 * length + 2);
+		byte[] b = buf;
+		int pos = count;
+
+		b[pos++] = '"';
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c >= 0x20 && c != '"' && c != '\\') {
+					b[pos++] = (byte) c;
+				}
+				else {
+					b[pos++] = '\\';
+					switch (c) {
+					case '"': b[pos++] = '"'; break;
+					case '\\': b[pos++] = '\\'; break;
+					case '\n': b[pos++] = 'n'; break;
+					case '\r': b[pos++] = 'r'; break;
+					case '\t': b[pos++] = 't'; break;
+					case '\b': b[pos++] = 'b'; break;
+					case '\f': b[pos++] = 'f'; break;
+					default:
+						b[pos++] = 'u';
+						b[pos++] = '0';
+						b[pos++] = '0';
+						b[pos++] = HEX[c >> 4];
+						b[pos++] = HEX[c & 0xF];
+					}
+				}
+			}
+			else if (c < 0x800) {
+				b[pos++] = (byte) (0xC0 | (c >> 6));
+				b[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+			else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[pos++] = (byte) (0xF0 | (cp >> 18));
+					b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[pos++] = (byte) (0x80 | (cp & 0x3F));
+				}
+				else {
+					b[pos++] = '?';
+				}
+			}
+			else {
+				b[pos++] = (byte) (0xE0 | (c >> 12));
+				b[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				b[pos++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		b[pos++] = '"';
+		count = pos;
+	}
+
+	/**
+	 * @return the number of bytes {@link #writeString(String) writeString} would write for s
+	 */
+	public static int quotedLength(String s) {
+		int length = s.length();
+		int bytes = 2;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				if (c >= 0x20 && c != '"' && c != '\\') {
+					bytes += 1;
+				}
+				else if (c == '"' || c == '\\' || c == '\n' || c == '\r' || c == '\t' || c == '\b' || c == '\f') {
+					bytes += 2;
+				}
+				else {
+					bytes += 6;
+				}
+			}
+			else if (c < 0x800) {
+				bytes += 2;
+			}
+			else if (Character.isSurrogate(c)) {
+				if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+					i++;
+					bytes += 4;
+				}
+				else {
+					bytes += 1;
+				}
+			}
+			else {
+				bytes += 3;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Write an arbitrary value the way the Google HTTP client would serialize
+	 * it in a row map: numbers and booleans as JSON literals, maps as objects,
+	 * collections and arrays as arrays and anything else as its string value.
+	 */
+	public void writeValue(Object value) {
+		if (value == null) {
+			writeNull();
+		}
+		else if (value instanceof String) {
+			writeString((String) value);
+		}
+		else if (value instanceof Text) {
+			writeString(((Text) value).getValue());
+		}
+		else if (value instanceof Boolean) {
+			writeBoolean((Boolean) value);
+		}
+		else if (value instanceof Double || value instanceof Float) {
+			writeDouble(((Number) value).doubleValue());
+		}
+		else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			writeLong(((Number) value).longValue());
+		}
+		else if (value instanceof Number) {
+			writeAscii(value.toString());
+		}
+		else if (value instanceof Date) {
+			writeLong(((Date) value).getTime());
+		}
+		else if (value instanceof Map) {
+			writeByte('{');
+			boolean first = true;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if (!first) {
+					writeByte(',');
+				}
+				first = false;
+				writeString(String.valueOf(entry.getKey()));
+				writeByte(':');
+				writeValue(entry.getValue());
+			}
+			writeByte('}');
+		}
+		else if (value instanceof Iterable) {
+			writeByte('[');
+			boolean first = true;
+			for (Object element : (Iterable<?>) value) {
+				if (!first) {
+					writeByte(',');
+				}
+				first = false;
+				writeValue(element);
+			}
+			writeByte(']');
+		}
+		else if (value instanceof Object[]) {
+			writeValue(Arrays.asList((Object[]) value));
+		}
+		else {
+			writeString(value.toString());
+		}
+	}
+}